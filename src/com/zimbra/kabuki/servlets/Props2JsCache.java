@@ -0,0 +1,344 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.kabuki.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * The generated buffers of {@link Props2JsServlet}, by locale and by
+ * request URI (without the compressed extension). Lookups and updates
+ * don't lock, so concurrent requests for the message bundles don't
+ * wait for each other.
+ * <p/>
+ * The total size of the cached buffers is bounded. When a new buffer
+ * doesn't fit, the buffers that weren't requested for the longest time
+ * are evicted to make room. Every hit stamps its buffer with the time
+ * of the hit, so the order is approximate: a buffer that is hit while
+ * the eviction runs may still be evicted. Only one caller evicts at a
+ * time; the others carry on without waiting. Every buffer is removed
+ * from its map by exactly one caller (with
+ * {@link ConcurrentMap#remove(Object, Object)}), which is the one that
+ * takes it off the total size.
+ * <p/>
+ * A buffer is only gzipped when it's first requested that way; the
+ * gzipped bytes are added to the total size if the buffer is still
+ * cached by then.
+ */
+class Props2JsCache {
+    private final ConcurrentMap<Locale, ConcurrentMap<String, Buffer>> buffers =
+        new ConcurrentHashMap<Locale, ConcurrentMap<String, Buffer>>();
+
+    private volatile long maxSize;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** @param maxSize The total size (in bytes) of the cached buffers. */
+    Props2JsCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    Buffer get(Locale locale, String uri) {
+        Buffer buffer = peek(locale, uri);
+        if (buffer != null) {
+            buffer.lastUsed = System.nanoTime();
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return buffer;
+    }
+
+    /** Returns the buffer without counting a hit or miss. */
+    Buffer peek(Locale locale, String uri) {
+        Map<String, Buffer> localeBuffers = buffers.get(locale);
+        return localeBuffers != null ? localeBuffers.get(uri) : null;
+    }
+
+    void put(Locale locale, String uri, Buffer buffer) {
+        if (buffer.getSize() > maxSize) {
+            return;
+        }
+        ConcurrentMap<String, Buffer> localeBuffers = buffers.get(locale);
+        if (localeBuffers == null) {
+            localeBuffers = new ConcurrentHashMap<String, Buffer>();
+            ConcurrentMap<String, Buffer> existing = buffers.putIfAbsent(locale, localeBuffers);
+            if (existing != null) {
+                localeBuffers = existing;
+            }
+        }
+        buffer.lastUsed = System.nanoTime();
+        attach(buffer);
+        Buffer old = localeBuffers.put(uri, buffer);
+        if (old != null && old != buffer) {
+            detach(old);
+        }
+        // NOTE: The locale may have been flushed (or evicted) while we
+        // NOTE: were adding to it.
+        if (buffers.get(locale) != localeBuffers) {
+            remove(localeBuffers, uri, buffer);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the buffers of the given locale and/or message bundle.
+     *
+     * @param locale    The locale or null for all locales.
+     * @param classname The name of a message bundle (e.g. "ZMsg") or
+     *                  null for all bundles.
+     * @return The number of buffers removed.
+     */
+    int flush(Locale locale, String classname) {
+        int count = 0;
+        for (Map.Entry<Locale, ConcurrentMap<String, Buffer>> entry : buffers.entrySet()) {
+            if (locale != null && !locale.equals(entry.getKey())) {
+                continue;
+            }
+            ConcurrentMap<String, Buffer> localeBuffers = entry.getValue();
+            for (Map.Entry<String, Buffer> buffer : localeBuffers.entrySet()) {
+                if (classname != null && !getClassnames(buffer.getKey()).contains(classname)) {
+                    continue;
+                }
+                if (remove(localeBuffers, buffer.getKey(), buffer.getValue())) {
+                    count++;
+                }
+            }
+            if (localeBuffers.isEmpty()) {
+                buffers.remove(entry.getKey(), localeBuffers);
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        int count = 0;
+        for (Map<String, Buffer> localeBuffers : buffers.values()) {
+            count += localeBuffers.size();
+        }
+        return count;
+    }
+
+    String getStats() {
+        return "entries=" + size() + " locales=" + buffers.size() + " size=" + size.get() +
+            " maxSize=" + maxSize + " hits=" + hits.sum() + " misses=" + misses.sum() +
+            " evictions=" + evictions.sum();
+    }
+
+    /**
+     * Evicts the buffers that weren't requested for the longest time
+     * until the others fit. Does nothing if another caller is evicting.
+     */
+    private void evict() {
+        while (size.get() > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                List<Candidate> candidates = new ArrayList<Candidate>();
+                for (ConcurrentMap<String, Buffer> localeBuffers : buffers.values()) {
+                    for (Map.Entry<String, Buffer> entry : localeBuffers.entrySet()) {
+                        candidates.add(new Candidate(localeBuffers, entry.getKey(), entry.getValue()));
+                    }
+                }
+                Collections.sort(candidates, LEAST_RECENTLY_USED);
+                for (Candidate candidate : candidates) {
+                    if (size.get() <= maxSize) {
+                        break;
+                    }
+                    if (remove(candidate.localeBuffers, candidate.uri, candidate.buffer)) {
+                        evictions.increment();
+                    }
+                }
+                for (Map.Entry<Locale, ConcurrentMap<String, Buffer>> entry : buffers.entrySet()) {
+                    if (entry.getValue().isEmpty()) {
+                        buffers.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private boolean remove(ConcurrentMap<String, Buffer> localeBuffers, String uri, Buffer buffer) {
+        if (localeBuffers.remove(uri, buffer)) {
+            detach(buffer);
+            return true;
+        }
+        return false;
+    }
+
+    /** Adds the buffer to the total size, unless it already is. */
+    private void attach(Buffer buffer) {
+        synchronized (buffer) {
+            if (buffer.cache == null) {
+                buffer.cache = this;
+                size.addAndGet(buffer.getSize());
+            }
+        }
+    }
+
+    /** Takes the buffer off the total size, unless it already is. */
+    private void detach(Buffer buffer) {
+        synchronized (buffer) {
+            if (buffer.cache == this) {
+                buffer.cache = null;
+                size.addAndGet(-buffer.getSize());
+            }
+        }
+    }
+
+    private static final Comparator<Candidate> LEAST_RECENTLY_USED = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            return Long.compare(c1.lastUsed, c2.lastUsed);
+        }
+    };
+
+    /** A buffer to evict, with the time of its last hit when it was listed. */
+    private static class Candidate {
+        final ConcurrentMap<String, Buffer> localeBuffers;
+        final String uri;
+        final Buffer buffer;
+        final long lastUsed;
+
+        Candidate(ConcurrentMap<String, Buffer> localeBuffers, String uri, Buffer buffer) {
+            this.localeBuffers = localeBuffers;
+            this.uri = uri;
+            this.buffer = buffer;
+            this.lastUsed = buffer.lastUsed;
+        }
+    }
+
+    /**
+     * A generated message bundle, as is and (once requested) gzipped,
+     * with a strong entity tag for each form (computed from its bytes)
+     * and the modification time (in ms, truncated to seconds) of the
+     * newest properties file.
+     */
+    static class Buffer {
+        final byte[] plain;
+        final String plainETag;
+        final long lastModified;
+        /** The time (from {@link System#nanoTime()}) of the last hit. */
+        volatile long lastUsed;
+
+        // NOTE: The entity tag is written before the bytes, which
+        // NOTE: publish both.
+        private volatile byte[] gzipped;
+        private String gzippedETag;
+        /** The cache whose total size includes this buffer, guarded by this. */
+        private Props2JsCache cache;
+
+        Buffer(byte[] plain, long lastModified) {
+            this.plain = plain;
+            this.plainETag = computeETag(plain);
+            // NOTE: HTTP dates only have a resolution of seconds.
+            this.lastModified = lastModified - lastModified % 1000;
+        }
+
+        /** Returns the gzipped bytes, compressing them on first use. */
+        byte[] getGzipped() {
+            byte[] gzipped = this.gzipped;
+            if (gzipped != null) {
+                return gzipped;
+            }
+            Props2JsCache cache;
+            synchronized (this) {
+                if (this.gzipped != null) {
+                    return this.gzipped;
+                }
+                gzipped = gzip(plain);
+                this.gzippedETag = computeETag(gzipped);
+                this.gzipped = gzipped;
+                cache = this.cache;
+                if (cache != null) {
+                    cache.size.addAndGet(gzipped.length);
+                }
+            }
+            if (cache != null) {
+                cache.evict();
+            }
+            return gzipped;
+        }
+
+        String getGzippedETag() {
+            getGzipped();
+            return gzippedETag;
+        }
+
+        int getSize() {
+            byte[] gzipped = this.gzipped;
+            return plain.length + (gzipped != null ? gzipped.length : 0);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 2);
+            OutputStream gzos = new GZIPOutputStream(bos);
+            gzos.write(bytes);
+            gzos.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // NOTE: Writing to memory doesn't fail.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String computeETag(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return "\"" + DatatypeConverter.printHexBinary(digest.digest(bytes)).toLowerCase() + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            // NOTE: Every JVM is required to provide MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the message bundles of the request URI, e.g. "/messages/AjxMsg,ZMsg.js". */
+    private static List<String> getClassnames(String uri) {
+        String filenames = uri.substring(uri.lastIndexOf('/') + 1);
+        int dot = filenames.indexOf('.');
+        return Arrays.asList((dot != -1 ? filenames.substring(0, dot) : filenames).split(","));
+    }
+}
@@ -19,27 +19,28 @@
 package com.zimbra.kabuki.servlets;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -109,15 +110,44 @@ public class Props2JsServlet extends HttpServlet {
 
     protected static final String P_DEBUG = "debug";
     protected static final String P_BASENAME_PATTERNS = "basename-patterns";
+    protected static final String P_CACHE_SIZE = "cache-size";
 
     protected static final String A_FLUSH_CACHE = "flushCache"; /* i.e. FlushCache.FLUSH_CACHE */
 
+    /**
+     * Restricts a cache flush to one locale (e.g. "en_US") and/or one
+     * message bundle (e.g. "ZMsg"). Without them, everything is flushed.
+     */
+    public static final String A_FLUSH_LOCALE = "flushLocale";
+    public static final String A_FLUSH_BUNDLE = "flushBundle";
+
     protected static final String A_REQUEST_URI = "request-uri";
+    protected static final String A_INCLUDE_REQUEST_URI = "javax.servlet.include.request_uri";
     protected static final String A_BASENAME_PATTERNS = P_BASENAME_PATTERNS;
     protected static final String A_BASENAME_PATTERNS_LIST = A_BASENAME_PATTERNS+"-list";
 
-    private static Map<Locale, Map<String, byte[]>> buffers =
-        new HashMap<Locale, Map<String, byte[]>>();
+    private static final long DEFAULT_CACHE_SIZE = 64L << 20; // 64M
+
+    private static Props2JsCache buffers = new Props2JsCache(DEFAULT_CACHE_SIZE);
+
+    /** The buffers being generated, by locale and URI. */
+    private static ConcurrentMap<String, FutureTask<Props2JsCache.Buffer>> generating =
+        new ConcurrentHashMap<String, FutureTask<Props2JsCache.Buffer>>();
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        String size = this.getInitParameter(P_CACHE_SIZE);
+        if (size != null) {
+            try {
+                buffers.setMaxSize(Long.parseLong(size.trim()));
+            } catch (NumberFormatException e) {
+                if (isWarnEnabled()) {
+                    warn("invalid "+P_CACHE_SIZE+" init parameter: "+size);
+                }
+            }
+        }
+    }
 
     private String getDirPath(String dirname) {
         if (new File(dirname).isAbsolute()) {
@@ -145,62 +175,192 @@ public class Props2JsServlet extends HttpServlet {
         // get request info
         boolean debug = req.getParameter(P_DEBUG) != null;
         Locale locale = getLocale(req);
-        Map<String, byte[]> localeBuffers;
         String uri = getRequestURI(req);
-
-        synchronized(buffers) {
-            localeBuffers = buffers.get(locale);
-            if (localeBuffers == null) {
-                localeBuffers =  Collections.synchronizedMap(new HashMap<String,
-                    byte[]>());
-                buffers.put(locale, localeBuffers);
-            }
-        }
+        // NOTE: The plain and the compressed URI share one buffer.
+        String key = uri.endsWith(COMPRESSED_EXT) ? uri.substring(0, uri.length() - COMPRESSED_EXT.length()) : uri;
 
         // get byte buffer
-        byte[] buffer = debug ? null : localeBuffers.get(uri);
-
-        if (buffer == null) {
-            buffer = getBuffer(req, locale, uri);
-            // do not need to compress JS because Prop2Js has been optimized
-            if (uri.endsWith(COMPRESSED_EXT)) {
-                // gzip response
-                ByteArrayOutputStream bos = new ByteArrayOutputStream(buffer.length / 2);
-                OutputStream gzos = new GZIPOutputStream(bos);
-
-                gzos.write(buffer);
-                gzos.close();
-                buffer = bos.toByteArray();
-            }
-            if (!LC.zimbra_minimize_resources.booleanValue()) {
-                localeBuffers.put(uri, buffer);
+        Props2JsCache.Buffer buffer;
+        if (debug || LC.zimbra_minimize_resources.booleanValue()) {
+            buffer = createBuffer(req, locale, uri);
+        } else {
+            buffer = buffers.get(locale, key);
+            if (buffer == null) {
+                buffer = getPendingBuffer(req, locale, uri, key);
             }
         }
 
+        // NOTE: Headers can't be set by an included request so the
+        // NOTE: content is never compressed for it.
+        boolean included = req.getAttribute(A_INCLUDE_REQUEST_URI) != null;
+        boolean gzip = !included && (uri.endsWith(COMPRESSED_EXT) || acceptsGzip(req));
+
+        byte[] content = gzip ? buffer.getGzipped() : buffer.plain;
+        String etag = gzip ? buffer.getGzippedETag() : buffer.plainETag;
+
         // generate output
-        OutputStream out = resp.getOutputStream();
         try {
-            if (uri.endsWith(COMPRESSED_EXT)) {
+            if (gzip) {
                 resp.setHeader("Content-Encoding", "gzip");
             }
+            if (!included && !uri.endsWith(COMPRESSED_EXT)) {
+                resp.addHeader("Vary", "Accept-Encoding");
+            }
+            if (!included) {
+                resp.setHeader("ETag", etag);
+                if (buffer.lastModified > 0) {
+                    resp.setDateHeader("Last-Modified", buffer.lastModified);
+                }
+            }
             resp.setContentType("application/x-javascript");
         } catch (Exception e) {
             if (isErrorEnabled()) {
                 error(e.getMessage());
             }
         }
-        out.write(buffer);
+        if (!included && isNotModified(req, etag, buffer.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (!included) {
+            // NOTE: Avoids chunked encoding of these small responses.
+            resp.setContentLength(content.length);
+        }
+        OutputStream out = resp.getOutputStream();
+        out.write(content);
         out.flush();
     }
 
+    /**
+     * Returns the buffer for the request, generating and caching it if
+     * no other request is doing so already. Otherwise the result of that
+     * request is shared instead of generating the same buffer again.
+     */
+    private Props2JsCache.Buffer getPendingBuffer(final HttpServletRequest req, final Locale locale,
+        final String uri, final String key) throws IOException {
+        String pendingKey = locale + " " + key;
+        FutureTask<Props2JsCache.Buffer> task = new FutureTask<Props2JsCache.Buffer>(
+            new Callable<Props2JsCache.Buffer>() {
+                @Override
+                public Props2JsCache.Buffer call() throws Exception {
+                    // NOTE: Another request may have finished generating
+                    // NOTE: this buffer between our cache miss and now.
+                    Props2JsCache.Buffer buffer = buffers.peek(locale, key);
+                    if (buffer == null) {
+                        buffer = createBuffer(req, locale, uri);
+                        buffers.put(locale, key, buffer);
+                    }
+                    return buffer;
+                }
+            });
+        FutureTask<Props2JsCache.Buffer> pending = generating.putIfAbsent(pendingKey, task);
+        if (pending == null) {
+            try {
+                task.run();
+            } finally {
+                generating.remove(pendingKey, task);
+            }
+            pending = task;
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while generating "+uri);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Generates the buffer, which is only compressed once it's requested
+     * that way. The buffer was last modified when the newest of the
+     * properties files it was generated from was.
+     */
+    private Props2JsCache.Buffer createBuffer(HttpServletRequest req, Locale locale, String uri)
+        throws IOException {
+        Generated generated = generateBuffer(req, locale, uri);
+        byte[] buffer = generated.buffer;
+        long lastModified = 0;
+        for (File file : generated.files) {
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        return new Props2JsCache.Buffer(buffer, lastModified);
+    }
+
+    /**
+     * Returns whether the client's copy is current. The entity tag takes
+     * precedence over the modification time, as in RFC 7232.
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified > 0) {
+            try {
+                long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+                return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+            } catch (IllegalArgumentException e) {
+                // ignore malformed date
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String accept = req.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     protected boolean flushCache(ServletRequest req) {
         Boolean flushCache = (Boolean)req.getAttribute(A_FLUSH_CACHE);
         if (flushCache != null && flushCache.booleanValue()) {
+            String locid = (String)req.getAttribute(A_FLUSH_LOCALE);
+            String bundle = (String)req.getAttribute(A_FLUSH_BUNDLE);
+            Locale locale = locid != null && locid.length() > 0 ? getLocale(locid) : null;
             int oldSize = buffers.size();
-            buffers.clear();
-            int newSize = buffers.size();
+            int count = buffers.flush(locale, bundle != null && bundle.length() > 0 ? bundle : null);
             if (isDebugEnabled()) {
-                debug("flushed uistrings cache: "+oldSize+" entries > "+newSize+" entries");
+                debug("flushed uistrings cache"+(locale != null ? " for locale "+locale : "")+
+                    (bundle != null ? " for bundle "+bundle : "")+": "+oldSize+" entries > "+
+                    (oldSize - count)+" entries ("+buffers.getStats()+")");
             }
             return true;
         }
@@ -260,20 +420,34 @@ public class Props2JsServlet extends HttpServlet {
             return new Locale(language);
         }
         else if (locid != null) {
-            String[] parts = locid.split("_");
-            if (parts.length > 1) {
-                return new Locale(parts[0], parts[1]);
-            } else {
-                return new Locale(parts[0]);
-            }
+            return getLocale(locid);
         }
         return req.getLocale();
     }
 
+    private static Locale getLocale(String locid) {
+        String[] parts = locid.split("_");
+        if (parts.length > 1) {
+            return new Locale(parts[0], parts[1]);
+        } else {
+            return new Locale(parts[0]);
+        }
+    }
+
     protected byte[] getBuffer(HttpServletRequest req,
+        Locale locale, String uri) throws IOException {
+        return generateBuffer(req, locale, uri).buffer;
+    }
+
+    /**
+     * Generates the buffer along with the properties files that
+     * {@link #load} read. Files read by an overridden <code>load</code>
+     * that doesn't call this implementation are not known.
+     */
+    protected Generated generateBuffer(HttpServletRequest req,
         Locale locale, String uri) throws IOException {
         BufferStream bos = new BufferStream(24 * 1024);
-        DataOutputStream out = new DataOutputStream(bos);
+        LoadStream out = new LoadStream(bos);
         out.writeBytes("// Locale: " + Props2Js.getCommentSafeString(locale.toString()) + '\n');
 
         // tokenize the list of patterns
@@ -324,7 +498,8 @@ public class Props2JsServlet extends HttpServlet {
             }
             load(req, out, locale, basenamePatterns, basedir, dirname, classname);
         }
-        return bos.toByteArray();
+        out.flush();
+        return new Generated(bos.toByteArray(), out.files);
     }
 
     protected void load(HttpServletRequest req, DataOutputStream out,
@@ -360,6 +535,9 @@ public class Props2JsServlet extends HttpServlet {
                 for (File file : loader.getFiles()) {
                     Props2Js.convert(out, file, classname);
                 }
+                if (out instanceof LoadStream) {
+                    ((LoadStream)out).files.addAll(loader.getFiles());
+                }
             } catch (MissingResourceException e) {
                 out.writeBytes("// properties for " + classname + " not found\n");
             } catch (IOException e) {
@@ -370,6 +548,26 @@ public class Props2JsServlet extends HttpServlet {
         }
     }
 
+    /** A generated buffer and the properties files it was generated from. */
+    protected static class Generated {
+        public final byte[] buffer;
+        public final List<File> files;
+
+        public Generated(byte[] buffer, List<File> files) {
+            this.buffer = buffer;
+            this.files = files;
+        }
+    }
+
+    /** The stream that {@link #load} writes to and adds the files it read to. */
+    protected static class LoadStream extends DataOutputStream {
+        public final List<File> files = new LinkedList<File>();
+
+        public LoadStream(OutputStream out) {
+            super(out);
+        }
+    }
+
     public static class PropsLoader extends ClassLoader {
         private List<File> files;
         private List<String> patterns;
@@ -0,0 +1,193 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.webClient.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+import com.zimbra.webClient.servlet.SkinPrecompiler;
+
+/**
+ * Generates the skin bundles of a webapp at build time. Example:
+ * <pre>
+ * &lt;skinprecompile webrootdir="${build.dir}/WebRoot" destdir="${build.dir}/WebRoot/WEB-INF/skinres"
+ *                 contextpath="/zimbra" version="${zimbra.buildinfo.version}"&gt;
+ *     &lt;bundle uri="/css/images,common,dwt,msgview,login,zm,spellcheck,skin.css"/&gt;
+ *     &lt;bundle uri="/js/skin.js"/&gt;
+ * &lt;/skinprecompile&gt;
+ * </pre>
+ * The skins, clients, locales and templates attributes take comma
+ * separated lists. User agents can be given with nested
+ * <code>useragent</code> elements or a <code>useragentsfile</code> to
+ * replace the default browsers.
+ * With <code>checkminify="true"</code>, every bundle is also minified
+ * as a whole and that is stored if it differs from the files minified
+ * one by one.
+ */
+public class SkinPrecompileTask extends Task {
+
+    //
+    // Data
+    //
+
+    private SkinPrecompiler precompiler = new SkinPrecompiler();
+    private List<String> uris = new LinkedList<String>();
+    private List<String> userAgents = new LinkedList<String>();
+
+    //
+    // Public methods
+    //
+
+    public void setWebrootDir(File dir) {
+        this.precompiler.setWebrootDir(dir);
+    }
+
+    public void setDestDir(File dir) {
+        this.precompiler.setDestDir(dir);
+    }
+
+    public void setContextPath(String contextPath) {
+        this.precompiler.setContextPath(contextPath);
+    }
+
+    public void setVersion(String version) {
+        this.precompiler.setVersion(version);
+    }
+
+    public void setSkins(String skins) {
+        this.precompiler.setSkins(split(skins));
+    }
+
+    public void setClients(String clients) {
+        this.precompiler.setClients(split(clients));
+    }
+
+    public void setTemplates(String templates) {
+        this.precompiler.setTemplates(split(templates));
+    }
+
+    public void setLocales(String names) {
+        List<Locale> locales = new LinkedList<Locale>();
+        for (String name : split(names)) {
+            locales.add(SkinPrecompiler.toLocale(name));
+        }
+        this.precompiler.setLocales(locales);
+    }
+
+    public void setThreads(int threads) {
+        this.precompiler.setThreads(threads);
+    }
+
+    /**
+     * A file with the user agents to precompile for, one per line, e.g.
+     * the most frequent ones in the access logs. Blank lines and lines
+     * starting with '#' are ignored; an empty value is ignored as well.
+     */
+    public void setUserAgentsFile(String filename) throws IOException {
+        if (filename.trim().length() == 0) {
+            return;
+        }
+        File file = this.getProject().resolveFile(filename.trim());
+        for (String line : Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                this.userAgents.add(line);
+            }
+        }
+    }
+
+    public void setCheckMinify(boolean checkMinify) {
+        this.precompiler.setCheckMinify(checkMinify);
+    }
+
+    public Bundle createBundle() {
+        return new Bundle();
+    }
+
+    public UserAgent createUserAgent() {
+        return new UserAgent();
+    }
+
+    //
+    // Task methods
+    //
+
+    public void execute() throws BuildException {
+        if (this.uris.isEmpty()) {
+            throw new BuildException("at least one bundle must be specified");
+        }
+        this.precompiler.setURIs(this.uris);
+        if (!this.userAgents.isEmpty()) {
+            this.precompiler.setUserAgents(this.userAgents);
+        }
+        try {
+            int count = this.precompiler.precompile();
+            this.log("Precompiled " + count + " skin bundles");
+            long mismatches = this.precompiler.getMinifyMismatches();
+            if (mismatches > 0) {
+                this.log(mismatches + " skin bundles minify differently file by file", Project.MSG_WARN);
+            }
+        }
+        catch (IOException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    //
+    // Private static functions
+    //
+
+    private static List<String> split(String s) {
+        List<String> list = new LinkedList<String>();
+        for (String part : s.split(",")) {
+            part = part.trim();
+            if (part.length() > 0) {
+                list.add(part);
+            }
+        }
+        return list;
+    }
+
+    //
+    // Classes
+    //
+
+    public class Bundle {
+        public void setUri(String uri) {
+            SkinPrecompileTask.this.uris.add(uri);
+        }
+    }
+
+    public class UserAgent {
+        public void addText(String text) {
+            text = text.trim();
+            if (text.length() > 0) {
+                SkinPrecompileTask.this.userAgents.add(text);
+            }
+        }
+    }
+
+} // class SkinPrecompileTask
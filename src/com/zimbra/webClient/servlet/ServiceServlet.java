@@ -109,6 +109,15 @@ public class ServiceServlet extends HttpServlet {
                 } else if ("/flushskins".equals(path)) {
                     checkAdminRight(req, authToken, Admin.R_flushCache);
                     doFlushSkins(req, resp);
+                } else if ("/skindeps".equals(path)) {
+                    checkAdminRight(req, authToken, Admin.R_flushCache);
+                    doSkinReport(req, resp, SkinResources.R_DEPENDENCIES);
+                } else if ("/skinstats".equals(path)) {
+                    checkAdminRight(req, authToken, Admin.R_flushCache);
+                    doSkinReport(req, resp, SkinResources.R_STATS);
+                } else if ("/skinsizes".equals(path)) {
+                    checkAdminRight(req, authToken, Admin.R_flushCache);
+                    doSkinReport(req, resp, SkinResources.R_SIZES);
                 } else if ("/loadlocales".equals(path)) {
                     //this operation does not require an admin permission. It can be triggered by a user login.
                     doLoadLocales(req, resp);
@@ -238,6 +247,10 @@ public class ServiceServlet extends HttpServlet {
         RequestDispatcher dispatcher = this.getServletContext().getContext(mailURL).getRequestDispatcher(FlushCache.RES_AJXMSG_JS);
         ZimbraLog.webclient.debug("flushCache: sending flush request");
         req.setAttribute(FlushCache.FLUSH_CACHE, Boolean.TRUE);
+        // NOTE: Optionally, only the given locale and/or message bundle
+        // NOTE: (e.g. ?locale=de&bundle=ZMsg) are flushed.
+        req.setAttribute(Props2JsServlet.A_FLUSH_LOCALE, req.getParameter("locale"));
+        req.setAttribute(Props2JsServlet.A_FLUSH_BUNDLE, req.getParameter("bundle"));
         dispatcher.include(req, resp);
 
         dispatcher = this.getServletContext().getContext("/zimbraAdmin").getRequestDispatcher(FlushCache.RES_AJXMSG_JS);
@@ -262,6 +275,14 @@ public class ServiceServlet extends HttpServlet {
         dispatcher.include(req, resp);
     }
 
+    private void doSkinReport(HttpServletRequest req, HttpServletResponse resp, String report) throws ServletException, IOException, ServiceException {
+        String mailURL = Provisioning.getInstance().getLocalServer().getMailURL();
+        RequestDispatcher dispatcher = this.getServletContext().getContext(mailURL).getRequestDispatcher(FlushCache.JS_SKIN_JS);
+        ZimbraLog.webclient.debug("skinReport: sending %s report request", report);
+        req.setAttribute(SkinResources.A_REPORT, report);
+        dispatcher.include(req, resp);
+    }
+
     private void doLoadLocales(HttpServletRequest req, HttpServletResponse resp) throws ServiceException, IOException {
         WebClientL10nUtil.loadBundlesByDiskScan();
         Set<Locale> availableLocales = WebClientL10nUtil.getAvailableLocales();
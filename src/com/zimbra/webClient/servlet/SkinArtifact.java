@@ -0,0 +1,302 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A directory of skin bundles generated at build time by
+ * {@link SkinPrecompiler}. The bundles are stored under the hash of
+ * their content (so identical bundles for different browsers are only
+ * stored once) together with their encoded variants. An index maps the
+ * bundle keys that {@link SkinResources} computes for a request to the
+ * content hashes, and records the browser macros that each bundle
+ * depends on.
+ * <p>
+ * The index also records the input files of the bundles (relative to
+ * the webroot, with their content hashes) so that bundles whose skin
+ * files have been changed on the server since the build aren't used.
+ */
+class SkinArtifact {
+
+	//
+	// Constants
+	//
+
+	static final String INDEX_FILENAME = "index.properties";
+	static final String BUNDLES_DIRNAME = "bundles";
+
+	private static final String K_CONTEXT_PATH = "contextPath";
+	private static final String K_VERSION = "version";
+	private static final String P_BUNDLE = "bundle.";
+	private static final String P_FOOTPRINT = "footprint.";
+	private static final String P_PROPERTIES = "properties.";
+	private static final String P_DEPENDENCIES = "dependencies.";
+
+	//
+	// Data
+	//
+
+	private final File dir;
+	private final File bundlesDir;
+	private final File webrootDir;
+	private final Properties index;
+	private final ConcurrentMap<String,SkinDependencies> dependencies =
+		new ConcurrentHashMap<String,SkinDependencies>();
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * Creates a new, empty artifact in the given directory.
+	 *
+	 * @param webrootDir The webroot that the bundles are generated from.
+	 */
+	public SkinArtifact(File dir, File webrootDir, String contextPath, String version) {
+		this(dir, webrootDir, new Properties());
+		index.setProperty(K_CONTEXT_PATH, contextPath);
+		index.setProperty(K_VERSION, version);
+	}
+
+	private SkinArtifact(File dir, File webrootDir, Properties index) {
+		this.dir = dir;
+		this.bundlesDir = new File(dir, BUNDLES_DIRNAME);
+		this.webrootDir = webrootDir;
+		this.index = index;
+	}
+
+	//
+	// Public methods
+	//
+
+	/**
+	 * Loads the artifact in the given directory.
+	 *
+	 * @param webrootDir The webroot that the artifact is deployed with.
+	 * @return The artifact or null if the directory doesn't contain one.
+	 */
+	public static SkinArtifact load(File dir, File webrootDir) throws IOException {
+		File file = new File(dir, INDEX_FILENAME);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties index = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			index.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return new SkinArtifact(dir, webrootDir, index);
+	}
+
+	public String getContextPath() {
+		return index.getProperty(K_CONTEXT_PATH, "");
+	}
+
+	public String getVersion() {
+		return index.getProperty(K_VERSION, "");
+	}
+
+	/** Returns the names of the macros that the bundles depend on. */
+	public Set<String> getFootprint(String footprintKey) {
+		String mnames = index.getProperty(P_FOOTPRINT + footprintKey);
+		if (mnames == null) {
+			return null;
+		}
+		Set<String> footprint = new HashSet<String>(SkinResources.Manifest.BROWSER_MACROS);
+		if (mnames.length() > 0) {
+			footprint.addAll(Arrays.asList(mnames.split(" ")));
+		}
+		return Collections.unmodifiableSet(footprint);
+	}
+
+	/**
+	 * Returns what the bundles for the given key were generated from,
+	 * with the paths resolved against the webroot, or null if unknown.
+	 */
+	public SkinDependencies getDependencies(String footprintKey) {
+		SkinDependencies deps = dependencies.get(footprintKey);
+		if (deps == null) {
+			String record = index.getProperty(P_DEPENDENCIES + footprintKey);
+			if (record == null) {
+				return null;
+			}
+			Properties props = new Properties();
+			try {
+				props.load(new StringReader(record));
+			}
+			catch (IOException e) {
+				// NOTE: Can't happen when reading from a string.
+				return null;
+			}
+			// NOTE: The record is shared so that files whose modification
+			// NOTE: time differs from the build (i.e. all of them after
+			// NOTE: a deployment) are only hashed once.
+			deps = SkinDependencies.load(props, webrootDir);
+			SkinDependencies existing = dependencies.putIfAbsent(footprintKey, deps);
+			if (existing != null) {
+				deps = existing;
+			}
+		}
+		return deps;
+	}
+
+	/**
+	 * Returns whether the bundles for the given key may be used, i.e.
+	 * whether their input files are unchanged since the build. Bundles
+	 * without a record of their inputs are never used.
+	 */
+	public boolean isCurrent(String footprintKey) throws IOException {
+		SkinDependencies deps = getDependencies(footprintKey);
+		return deps != null && !deps.isStale();
+	}
+
+	/**
+	 * Reads the bundle and the variants of the given encodings.
+	 *
+	 * @return The bundle or null if the artifact doesn't contain it.
+	 */
+	public SkinBundle getBundle(String bundleKey, String type, Collection<SkinEncoder> encoders)
+			throws IOException {
+		String hash = index.getProperty(P_BUNDLE + bundleKey);
+		if (hash == null) {
+			return null;
+		}
+		File file = new File(bundlesDir, hash + "." + type);
+		if (!file.isFile()) {
+			return null;
+		}
+		SkinBundle bundle = new SkinBundle(type, Files.readAllBytes(file.toPath()), file.lastModified());
+		for (SkinEncoder encoder : encoders) {
+			File encfile = new File(bundlesDir, hash + "." + type + encoder.getExtension());
+			if (encfile.isFile()) {
+				bundle.putContent(encoder, Files.readAllBytes(encfile.toPath()));
+			}
+		}
+		String properties = index.getProperty(P_PROPERTIES + bundleKey);
+		if (properties != null) {
+			Properties props = new Properties();
+			props.load(new StringReader(properties));
+			Map<String,String> map = new HashMap<String,String>();
+			for (String name : props.stringPropertyNames()) {
+				map.put(name, props.getProperty(name));
+			}
+			bundle.putProperties(map);
+		}
+		return bundle;
+	}
+
+	/**
+	 * Records the macros (in addition to the browser macros that are
+	 * always checked) that the bundles for the given key depend on.
+	 */
+	public synchronized void putFootprint(String footprintKey, Set<String> footprint) {
+		Set<String> mnames = new TreeSet<String>(footprint);
+		mnames.removeAll(SkinResources.Manifest.BROWSER_MACROS);
+		index.setProperty(P_FOOTPRINT + footprintKey, SkinResources.getMacroNames(mnames));
+	}
+
+	/** Records the input files of the bundles for the given key. */
+	public void putDependencies(String footprintKey, SkinDependencies deps) throws IOException {
+		Properties props = new Properties();
+		deps.store(props, webrootDir);
+		StringWriter record = new StringWriter();
+		props.store(record, null);
+		// NOTE: Without the timestamp comment that Properties writes.
+		String value = record.toString().replaceFirst("^#.*\\R", "");
+		synchronized (this) {
+			index.setProperty(P_DEPENDENCIES + footprintKey, value);
+		}
+	}
+
+	/**
+	 * Writes the bundle and its encoded variants, unless a bundle with
+	 * the same content has already been written, and indexes it.
+	 */
+	public void putBundle(String bundleKey, SkinBundle bundle, Collection<SkinEncoder> encoders)
+			throws IOException {
+		String hash = bundle.getETag().replace("\"", "");
+		String filename = hash + "." + bundle.getType();
+		synchronized (this) {
+			bundlesDir.mkdirs();
+			File file = new File(bundlesDir, filename);
+			if (!file.exists()) {
+				bundle.writeContent(null, file);
+				for (SkinEncoder encoder : encoders) {
+					bundle.writeContent(encoder, new File(bundlesDir, filename + encoder.getExtension()));
+				}
+			}
+			index.setProperty(P_BUNDLE + bundleKey, hash);
+			// NOTE: The bundle properties are stored in a single entry,
+			// NOTE: one name=value line each.
+			if (!bundle.getProperties().isEmpty()) {
+				StringBuilder properties = new StringBuilder();
+				for (Map.Entry<String,String> entry : bundle.getProperties().entrySet()) {
+					properties.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+				}
+				index.setProperty(P_PROPERTIES + bundleKey, properties.toString());
+			}
+		}
+	}
+
+	/** Writes the index. The artifact is not usable until this is done. */
+	public synchronized void store() throws IOException {
+		dir.mkdirs();
+		OutputStream out = new FileOutputStream(new File(dir, INDEX_FILENAME));
+		try {
+			index.store(out, "Precompiled skin resources");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/** Returns the number of bundle keys in the index. */
+	public synchronized int size() {
+		int count = 0;
+		for (String name : index.stringPropertyNames()) {
+			if (name.startsWith(P_BUNDLE)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+} // class SkinArtifact
@@ -0,0 +1,350 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A finished skin resource (aggregated, preprocessed and minified) as
+ * it is sent to the client. The raw bytes are always present; encoded
+ * variants (e.g. gzip) are kept alongside them, keyed by encoding name.
+ * A variant is created when the bundle is generated or, for bundles
+ * loaded without it, the first time a client asks for it.
+ * <p>
+ * Each variant has its own strong entity tag, computed from a hash of
+ * its bytes, so that caches never confuse the raw and encoded content.
+ * <p>
+ * Bundles that are too large to keep on the heap are backed by their
+ * disk cache files instead. Their content is memory-mapped read-only
+ * and is only ever streamed: it is written to the response (and to an
+ * encoder) in small chunks, so the whole file is never copied onto the
+ * heap. The servlet API offers no zero-copy path, so each chunk is
+ * still copied once through a small buffer.
+ */
+class SkinBundle {
+
+	//
+	// Constants
+	//
+
+	/**
+	 * Nominal heap cost of a file backed variant so that the number of
+	 * mapped files held by the memory cache is bounded as well.
+	 */
+	static final long MAPPED_WEIGHT = 4096;
+
+	//
+	// Data
+	//
+
+	private final String type;
+	private final Content content;
+	private final long lastModified;
+	private final Map<String,Content> encoded = new ConcurrentHashMap<String,Content>();
+	private final Map<String,String> properties = new ConcurrentHashMap<String,String>();
+	private final AtomicLong hits = new AtomicLong();
+	private volatile SkinDependencies dependencies;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * @param lastModified The modification time (in ms) of the newest
+	 *                     input file the content was generated from.
+	 */
+	public SkinBundle(String type, byte[] content, long lastModified) {
+		this(type, new Content(content), lastModified);
+	}
+
+	private SkinBundle(String type, Content content, long lastModified) {
+		this.type = type;
+		this.content = content;
+		// NOTE: HTTP dates only have a resolution of seconds.
+		this.lastModified = lastModified - lastModified % 1000;
+	}
+
+	/**
+	 * Returns a bundle backed by the given (disk cache) file. The file
+	 * must not be modified while the bundle is in use.
+	 */
+	public static SkinBundle map(String type, File file) throws IOException {
+		return new SkinBundle(type, new Content(file), file.lastModified());
+	}
+
+	//
+	// Public methods
+	//
+
+	public String getType() {
+		return type;
+	}
+
+	public int getLength() {
+		return content.getLength();
+	}
+
+	public String getETag() {
+		return content.etag;
+	}
+
+	/**
+	 * Returns the entity tag of the content in the given encoding.
+	 *
+	 * @param encoder The encoding or null for the raw content.
+	 */
+	public String getETag(SkinEncoder encoder) throws IOException {
+		return getVariant(encoder).etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public boolean isMapped() {
+		return content.file != null;
+	}
+
+	public boolean hasContent(SkinEncoder encoder) {
+		return encoder == null || encoded.containsKey(encoder.getName());
+	}
+
+	public int getLength(SkinEncoder encoder) throws IOException {
+		return getVariant(encoder).getLength();
+	}
+
+	/**
+	 * Writes the content in the given encoding to the stream, encoding
+	 * it first if that has not happened yet. Concurrent callers may both
+	 * encode but the results are identical so the last one simply wins.
+	 *
+	 * @param encoder The encoding or null for the raw content.
+	 */
+	public void writeContent(SkinEncoder encoder, OutputStream out) throws IOException {
+		getVariant(encoder).writeTo(out);
+	}
+
+	/** Writes the content in the given encoding to the file. */
+	public void writeContent(SkinEncoder encoder, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			writeContent(encoder, out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encodes the content into the given file and adds the variant
+	 * backed by it. Used for mapped bundles so that neither the content
+	 * nor the encoded content is held on the heap.
+	 */
+	public void encodeContent(SkinEncoder encoder, File file) throws IOException {
+		OutputStream out = encoder.encode(new FileOutputStream(file));
+		try {
+			content.writeTo(out);
+		}
+		finally {
+			out.close();
+		}
+		putContent(encoder, file);
+	}
+
+	public void putContent(SkinEncoder encoder, byte[] bytes) {
+		encoded.put(encoder.getName(), new Content(bytes));
+	}
+
+	/** Adds a variant backed by the given (disk cache) file. */
+	public void putContent(SkinEncoder encoder, File file) throws IOException {
+		encoded.put(encoder.getName(), new Content(file));
+	}
+
+	/**
+	 * Returns a fact recorded about the bundle when it was generated,
+	 * e.g. whether the templates were included.
+	 */
+	public String getProperty(String name) {
+		return properties.get(name);
+	}
+
+	public Map<String,String> getProperties() {
+		return Collections.unmodifiableMap(properties);
+	}
+
+	public void putProperties(Map<String,String> properties) {
+		this.properties.putAll(properties);
+	}
+
+	/** What the bundle was generated from, or null if unknown. */
+	public SkinDependencies getDependencies() {
+		return dependencies;
+	}
+
+	public void setDependencies(SkinDependencies dependencies) {
+		this.dependencies = dependencies;
+	}
+
+	/** Counts a request served with this bundle. */
+	public void hit() {
+		hits.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Approximate heap cost of this bundle, used to bound the memory cache. */
+	public long getWeight() {
+		long weight = content.getWeight();
+		for (Content variant : encoded.values()) {
+			weight += variant.getWeight();
+		}
+		return weight;
+	}
+
+	//
+	// Private methods
+	//
+
+	private Content getVariant(SkinEncoder encoder) throws IOException {
+		if (encoder == null) {
+			return content;
+		}
+		Content variant = encoded.get(encoder.getName());
+		if (variant == null) {
+			if (content.bytes != null) {
+				variant = new Content(encoder.encode(content.bytes));
+			}
+			else {
+				// NOTE: Streamed from the mapped file.
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(content.getLength() / 2);
+				OutputStream out = encoder.encode(bos);
+				content.writeTo(out);
+				out.close();
+				variant = new Content(bos.toByteArray());
+			}
+			encoded.put(encoder.getName(), variant);
+		}
+		return variant;
+	}
+
+	//
+	// Static functions
+	//
+
+	static String computeETag(byte[] bytes) {
+		return computeETag(ByteBuffer.wrap(bytes));
+	}
+
+	static String computeETag(ByteBuffer buffer) {
+		return "\"" + computeHash(buffer) + "\"";
+	}
+
+	/** Returns the MD5 hash of the bytes as lower case hex digits. */
+	static String computeHash(byte[] bytes) {
+		return computeHash(ByteBuffer.wrap(bytes));
+	}
+
+	static String computeHash(ByteBuffer buffer) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update(buffer);
+			return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// NOTE: Every JVM is required to provide MD5.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//
+	// Classes
+	//
+
+	/** The bytes of one variant, either on the heap or in a file. */
+	static class Content {
+
+		// Data
+		final byte[] bytes;
+		final File file;
+		final MappedByteBuffer mapped;
+		final String etag;
+
+		// Constructors
+		Content(byte[] bytes) {
+			this.bytes = bytes;
+			this.file = null;
+			this.mapped = null;
+			this.etag = computeETag(bytes);
+		}
+
+		Content(File file) throws IOException {
+			this.bytes = null;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				// NOTE: The mapping stays valid after the channel is closed.
+				this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			finally {
+				raf.close();
+			}
+			this.etag = computeETag(mapped.duplicate());
+		}
+
+		// Public methods
+		int getLength() {
+			return bytes != null ? bytes.length : mapped.capacity();
+		}
+
+		long getWeight() {
+			return bytes != null ? bytes.length : MAPPED_WEIGHT;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			if (bytes != null) {
+				out.write(bytes);
+				return;
+			}
+			// NOTE: Writes the mapped pages to the stream in small chunks
+			// NOTE: rather than reading the whole file into the heap. The
+			// NOTE: mapping stays valid if a cache flush removes the file.
+			Channels.newChannel(out).write(mapped.duplicate());
+		}
+
+	} // class Content
+
+} // class SkinBundle
@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, size-weighted LRU cache of finished skin bundles keyed by the
+ * same cache id that {@link SkinResources} uses for its disk cache. The
+ * bound is expressed in bytes of bundle content rather than in number of
+ * entries because bundle sizes range from a few hundred bytes to several
+ * hundred kilobytes. Bundles backed by memory-mapped files count with
+ * a small nominal weight since their content is not on the heap.
+ */
+class SkinBundleCache {
+
+	//
+	// Data
+	//
+
+	private final long maxWeight;
+	private final long maxEntryWeight;
+	private final Map<String,SkinBundle> bundles = new LinkedHashMap<String,SkinBundle>(64, 0.75f, true);
+	private final Map<String,Long> weights = new HashMap<String,Long>();
+	private long weight;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * @param maxWeight Maximum total size (in bytes) of the cached bundles.
+	 *                  A value of zero or less disables the cache.
+	 */
+	public SkinBundleCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		// NOTE: Don't let a single huge bundle flush everything else.
+		this.maxEntryWeight = maxWeight / 4;
+	}
+
+	//
+	// Public methods
+	//
+
+	public boolean isEnabled() {
+		return maxWeight > 0;
+	}
+
+	/** Returns whether a bundle of the given weight would be cached. */
+	public boolean accepts(long bundleWeight) {
+		return isEnabled() && bundleWeight <= maxEntryWeight;
+	}
+
+	public synchronized SkinBundle get(String cacheId) {
+		return bundles.get(cacheId);
+	}
+
+	/**
+	 * Adds (or re-weighs) the bundle. Bundles that are too large for the
+	 * cache are not stored; callers fall back to the disk cache for them.
+	 */
+	public synchronized void put(String cacheId, SkinBundle bundle) {
+		if (!isEnabled()) {
+			return;
+		}
+		remove(cacheId);
+		long bundleWeight = bundle.getWeight();
+		if (!accepts(bundleWeight)) {
+			return;
+		}
+		bundles.put(cacheId, bundle);
+		weights.put(cacheId, bundleWeight);
+		weight += bundleWeight;
+		evict();
+	}
+
+	public synchronized SkinBundle remove(String cacheId) {
+		SkinBundle bundle = bundles.remove(cacheId);
+		Long bundleWeight = weights.remove(cacheId);
+		if (bundleWeight != null) {
+			weight -= bundleWeight;
+		}
+		return bundle;
+	}
+
+	public synchronized void clear() {
+		bundles.clear();
+		weights.clear();
+		weight = 0;
+	}
+
+	/** Returns a snapshot of the cached bundles, least recently used first. */
+	public synchronized List<Map.Entry<String,SkinBundle>> entries() {
+		List<Map.Entry<String,SkinBundle>> entries = new ArrayList<Map.Entry<String,SkinBundle>>(bundles.size());
+		for (Map.Entry<String,SkinBundle> entry : bundles.entrySet()) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<String,SkinBundle>(entry));
+		}
+		return entries;
+	}
+
+	public synchronized int size() {
+		return bundles.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	//
+	// Protected methods
+	//
+
+	/**
+	 * Called (with the cache locked) for each bundle that is evicted to
+	 * make room for others.
+	 */
+	protected void evicted(String cacheId) {
+	}
+
+	//
+	// Private methods
+	//
+
+	private void evict() {
+		Iterator<Map.Entry<String,SkinBundle>> iter = bundles.entrySet().iterator();
+		while (weight > maxWeight && iter.hasNext()) {
+			String cacheId = iter.next().getKey();
+			iter.remove();
+			Long bundleWeight = weights.remove(cacheId);
+			if (bundleWeight != null) {
+				weight -= bundleWeight;
+			}
+			evicted(cacheId);
+		}
+	}
+
+} // class SkinBundleCache
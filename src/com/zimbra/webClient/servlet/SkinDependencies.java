@@ -0,0 +1,327 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Records what a skin bundle was generated from: the input files (the
+ * manifest and its substitution files, the source files with their
+ * locale variants and the templates) with their size, modification time
+ * and content hash, the browser macros the bundle depends on and the
+ * domain overrides that were applied.
+ * <p>
+ * The record is stored next to the bundle in the disk cache so that a
+ * cached bundle can be checked against its inputs without generating
+ * it again, also after a restart. An input whose modification time
+ * changed but whose size and hash did not (e.g. a file that was only
+ * touched or copied again) doesn't make the bundle stale.
+ */
+class SkinDependencies {
+
+	//
+	// Constants
+	//
+
+	private static final String P_INPUT = "input.";
+	private static final String P_MACRO = "macro.";
+	private static final String P_OVERRIDE = "override.";
+
+	//
+	// Data
+	//
+
+	private final List<Input> inputs = new ArrayList<Input>();
+	private final Map<String,String> macros = new TreeMap<String,String>();
+	private final Map<String,String> overrides = new TreeMap<String,String>();
+
+	//
+	// Constructors
+	//
+
+	/** Records the current state of the given input files. */
+	public SkinDependencies(Collection<File> files, Map<String,String> macros, Map<String,String> overrides)
+			throws IOException {
+		for (File file : files) {
+			inputs.add(new Input(file));
+		}
+		this.macros.putAll(macros);
+		this.overrides.putAll(overrides);
+	}
+
+	private SkinDependencies() {
+	}
+
+	//
+	// Public methods
+	//
+
+	public List<File> getFiles() {
+		List<File> files = new ArrayList<File>(inputs.size());
+		for (Input input : inputs) {
+			files.add(input.file);
+		}
+		return files;
+	}
+
+	public Map<String,String> getMacros() {
+		return Collections.unmodifiableMap(macros);
+	}
+
+	public Map<String,String> getOverrides() {
+		return Collections.unmodifiableMap(overrides);
+	}
+
+	/**
+	 * Returns whether any of the input files has changed since the
+	 * bundle was generated. Inputs whose content is unchanged are
+	 * revalidated, i.e. their new modification time is recorded.
+	 */
+	public synchronized boolean isStale() throws IOException {
+		for (Input input : inputs) {
+			if (input.isStale()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Reads the record written by {@link #write}. */
+	public static SkinDependencies read(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return load(props, null);
+	}
+
+	public void write(File file) throws IOException {
+		Properties props = new Properties();
+		store(props, null);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the record added to the properties by {@link #store}.
+	 *
+	 * @param baseDir The directory that relative paths are resolved
+	 *                against or null if the paths are absolute.
+	 */
+	public static SkinDependencies load(Properties props, File baseDir) {
+		SkinDependencies deps = new SkinDependencies();
+		Map<Integer,Input> inputs = new TreeMap<Integer,Input>();
+		for (String name : props.stringPropertyNames()) {
+			String value = props.getProperty(name);
+			if (name.startsWith(P_INPUT)) {
+				String[] parts = value.split(" ", 4);
+				if (parts.length == 4) {
+					inputs.put(Integer.valueOf(name.substring(P_INPUT.length())),
+						new Input(resolve(baseDir, parts[3]), Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+				}
+			}
+			else if (name.startsWith(P_MACRO)) {
+				deps.macros.put(name.substring(P_MACRO.length()), value);
+			}
+			else if (name.startsWith(P_OVERRIDE)) {
+				deps.overrides.put(name.substring(P_OVERRIDE.length()), value);
+			}
+		}
+		deps.inputs.addAll(inputs.values());
+		return deps;
+	}
+
+	/**
+	 * Adds the record to the properties.
+	 *
+	 * @param baseDir If not null, the paths of the files below this
+	 *                directory are stored relative to it so that the
+	 *                record can be used in another location, e.g. for
+	 *                bundles generated at build time.
+	 */
+	public synchronized void store(Properties props, File baseDir) {
+		for (int i = 0; i < inputs.size(); i++) {
+			Input input = inputs.get(i);
+			props.setProperty(P_INPUT + i,
+				input.length + " " + input.lastModified + " " + input.hash + " " + relativize(baseDir, input.file));
+		}
+		for (Map.Entry<String,String> entry : macros.entrySet()) {
+			props.setProperty(P_MACRO + entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String,String> entry : overrides.entrySet()) {
+			props.setProperty(P_OVERRIDE + entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Prints the record, one line per macro, override and input file.
+	 * Input files that have changed since are marked.
+	 */
+	public synchronized void print(PrintWriter out, String indent) {
+		for (Map.Entry<String,String> entry : macros.entrySet()) {
+			out.println(indent + "macro " + entry.getKey() + "=" + entry.getValue());
+		}
+		for (Map.Entry<String,String> entry : overrides.entrySet()) {
+			out.println(indent + "override " + entry.getKey() + "=" + entry.getValue());
+		}
+		for (Input input : inputs) {
+			String state;
+			if (!input.file.exists()) {
+				state = input.length == Input.MISSING ? "" : " [missing]";
+			}
+			else if (input.isChanged()) {
+				state = " [changed]";
+			}
+			else {
+				state = "";
+			}
+			out.println(indent + "input " + input.file.getPath() + " length=" + input.length +
+				" lastModified=" + new Date(input.lastModified) + " hash=" + input.hash + state);
+		}
+	}
+
+	//
+	// Private static functions
+	//
+
+	private static String relativize(File baseDir, File file) {
+		if (baseDir != null) {
+			String prefix = baseDir.getAbsolutePath() + File.separator;
+			String path = file.getAbsolutePath();
+			if (path.startsWith(prefix)) {
+				return path.substring(prefix.length());
+			}
+		}
+		return file.getPath();
+	}
+
+	private static File resolve(File baseDir, String path) {
+		File file = new File(path);
+		return baseDir != null && !file.isAbsolute() ? new File(baseDir, path) : file;
+	}
+
+	//
+	// Classes
+	//
+
+	/**
+	 * The state of one input file. A missing file has a length of -1; a
+	 * directory has a length of -2 and the hash of its sorted listing, so
+	 * that files added to or removed from it (e.g. a new locale variant)
+	 * are noticed.
+	 */
+	static class Input {
+
+		// Constants
+		static final long MISSING = -1;
+		static final long DIRECTORY = -2;
+
+		// Data
+		final File file;
+		final long length;
+		long lastModified;
+		final String hash;
+
+		// Constructors
+		Input(File file) throws IOException {
+			this(file, length(file), file.lastModified(), hash(file));
+		}
+
+		Input(File file, long length, long lastModified, String hash) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		// Public methods
+		boolean isStale() throws IOException {
+			if (length(file) != length) {
+				return true;
+			}
+			long lastModified = file.lastModified();
+			if (lastModified == this.lastModified) {
+				return false;
+			}
+			if (!hash(file).equals(hash)) {
+				return true;
+			}
+			this.lastModified = lastModified;
+			return false;
+		}
+
+		/** Like {@link #isStale()} but doesn't remember a touched input. */
+		boolean isChanged() {
+			try {
+				return length(file) != length ||
+					(file.lastModified() != lastModified && !hash(file).equals(hash));
+			}
+			catch (IOException e) {
+				return true;
+			}
+		}
+
+		// Private static functions
+		private static long length(File file) {
+			return file.isFile() ? file.length() : file.isDirectory() ? DIRECTORY : MISSING;
+		}
+
+		private static String hash(File file) throws IOException {
+			if (file.isFile()) {
+				return SkinBundle.computeHash(Files.readAllBytes(file.toPath()));
+			}
+			String[] names = file.isDirectory() ? file.list() : null;
+			if (names == null) {
+				return "-";
+			}
+			Arrays.sort(names);
+			StringBuilder listing = new StringBuilder();
+			for (String name : names) {
+				listing.append(name).append('\n');
+			}
+			return SkinBundle.computeHash(listing.toString().getBytes("UTF-8"));
+		}
+
+	} // class Input
+
+} // class SkinDependencies
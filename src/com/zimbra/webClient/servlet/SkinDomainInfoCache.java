@@ -0,0 +1,272 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zimbra.common.account.Key;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.soap.AdminConstants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Entry;
+import com.zimbra.cs.account.soap.SoapProvisioning;
+
+/**
+ * Caches the skin related attributes (colors, logos, favicon and help
+ * URLs) of the domain for each virtual host name. The values are looked
+ * up with an admin SOAP <code>GetDomainInfo</code> request, falling back
+ * to the global config if the host name does not belong to a domain.
+ * <p>
+ * Entries expire after a configurable time. An expired entry is still
+ * returned to the caller while it is refreshed in the background, so
+ * generating a skin never waits for the admin service for a host name
+ * that has been seen before. Concurrent first lookups of the same host
+ * name share a single request. A failed refresh keeps the previous
+ * attributes, so a transient outage of the admin service doesn't turn
+ * a branded domain into the default skin; failed first lookups are
+ * cached (as an empty set of attributes). Either is retried after a
+ * shorter time.
+ */
+class SkinDomainInfoCache {
+
+	//
+	// Constants
+	//
+
+	private static final int MAX_REFRESH_QUEUE = 1000;
+
+	//
+	// Data
+	//
+
+	private final String[] attrNames;
+	private final long ttl;
+	private final long negativeTtl;
+	private final Map<String,DomainInfo> infos;
+	private final ConcurrentMap<String,FutureTask<DomainInfo>> loading =
+		new ConcurrentHashMap<String,FutureTask<DomainInfo>>();
+	private final ExecutorService refresher;
+	private SoapProvisioning provisioning;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * @param attrNames   The attributes to read from the domain (or config).
+	 * @param ttl         Time (in ms) after which an entry is refreshed.
+	 * @param negativeTtl Time (in ms) after which a failed lookup is retried.
+	 * @param maxEntries  Maximum number of host names to remember.
+	 */
+	public SkinDomainInfoCache(String[] attrNames, long ttl, long negativeTtl, final int maxEntries) {
+		this.attrNames = attrNames;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.infos = Collections.synchronizedMap(new LinkedHashMap<String,DomainInfo>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,DomainInfo> eldest) {
+				return size() > maxEntries;
+			}
+		});
+		this.refresher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(MAX_REFRESH_QUEUE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SkinDomainInfoRefresher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	//
+	// Public methods
+	//
+
+	/**
+	 * Returns the attributes for the given virtual host name. The
+	 * returned map is never null but may be empty if the lookup failed.
+	 */
+	public Map<String,String> get(final String serverName) {
+		final DomainInfo info = infos.get(serverName);
+		if (info == null) {
+			return getPending(serverName).attrs;
+		}
+		if (info.isExpired() && info.refreshing.compareAndSet(false, true)) {
+			try {
+				refresher.execute(new Runnable() {
+					@Override
+					public void run() {
+						infos.put(serverName, load(serverName, info));
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// NOTE: Try again on the next request.
+				info.refreshing.set(false);
+			}
+		}
+		return info.attrs;
+	}
+
+	public void clear() {
+		infos.clear();
+	}
+
+	public int size() {
+		return infos.size();
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	//
+	// Private methods
+	//
+
+	/**
+	 * Looks up the attributes of a host name that isn't cached. If
+	 * another request is already doing so, its result is shared.
+	 */
+	private DomainInfo getPending(final String serverName) {
+		FutureTask<DomainInfo> task = new FutureTask<DomainInfo>(new Callable<DomainInfo>() {
+			@Override
+			public DomainInfo call() {
+				DomainInfo info = load(serverName, null);
+				infos.put(serverName, info);
+				return info;
+			}
+		});
+		FutureTask<DomainInfo> pending = loading.putIfAbsent(serverName, task);
+		if (pending == null) {
+			try {
+				task.run();
+			}
+			finally {
+				loading.remove(serverName, task);
+			}
+			pending = task;
+		}
+		try {
+			return pending.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new DomainInfo(Collections.<String,String>emptyMap(), 0);
+		}
+		catch (ExecutionException e) {
+			// NOTE: Can't happen; load() doesn't throw.
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param previous The entry being refreshed or null if there is none.
+	 */
+	private DomainInfo load(String serverName, DomainInfo previous) {
+		try {
+			// NOTE: The lock is only held to get the client; the requests
+			// NOTE: for different host names don't wait for each other.
+			SoapProvisioning provisioning = getProvisioning();
+			Entry entry = provisioning.getDomainInfo(Key.DomainBy.virtualHostname, serverName);
+			if (entry == null) {
+				entry = provisioning.getConfig();
+			}
+			Map<String,String> attrs = new HashMap<String,String>();
+			if (entry != null) {
+				for (String attrName : attrNames) {
+					String value = entry.getAttr(attrName);
+					if (value != null) {
+						attrs.put(attrName, value);
+					}
+				}
+			}
+			if (ZimbraLog.webclient.isDebugEnabled()) {
+				ZimbraLog.webclient.debug("DEBUG: domain info for " + serverName + ": " + attrs);
+			}
+			return new DomainInfo(Collections.unmodifiableMap(attrs), ttl);
+		}
+		catch (Exception e) {
+			ZimbraLog.webclient.warn("Unable to get domain info for " + serverName + ": " + e.getMessage());
+			synchronized (this) {
+				// NOTE: Start over with a fresh client in case it is broken.
+				provisioning = null;
+			}
+			// NOTE: Keep the last good attributes until the retry.
+			Map<String,String> attrs = previous != null ? previous.attrs : Collections.<String,String>emptyMap();
+			return new DomainInfo(attrs, negativeTtl);
+		}
+	}
+
+	private synchronized SoapProvisioning getProvisioning() {
+		if (provisioning == null) {
+			SoapProvisioning prov = new SoapProvisioning();
+			String soapUri =
+				LC.zimbra_admin_service_scheme.value() +
+				LC.zimbra_zmprov_default_soap_server.value() +
+				':' +
+				LC.zimbra_admin_service_port.intValue() +
+				AdminConstants.ADMIN_SERVICE_URI
+			;
+			prov.soapSetURI(soapUri);
+			provisioning = prov;
+		}
+		return provisioning;
+	}
+
+	//
+	// Classes
+	//
+
+	static class DomainInfo {
+
+		// Data
+		final Map<String,String> attrs;
+		final long expires;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		// Constructors
+		DomainInfo(Map<String,String> attrs, long ttl) {
+			this.attrs = attrs;
+			this.expires = System.currentTimeMillis() + ttl;
+		}
+
+		// Public methods
+		boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+
+	} // class DomainInfo
+
+} // class SkinDomainInfoCache
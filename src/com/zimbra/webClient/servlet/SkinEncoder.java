@@ -0,0 +1,81 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A content encoding that {@link SkinResources} can apply to a bundle.
+ * The encoded bytes are produced once, when the bundle is generated or
+ * first requested with that encoding, and are cached next to the raw
+ * bytes. Additional encodings are added by implementing this interface
+ * and registering the encoder with the servlet.
+ */
+interface SkinEncoder {
+
+	/** The encoding name as used in the Accept-Encoding and Content-Encoding headers. */
+	public String getName();
+
+	/** The file extension used for the encoded file in the disk cache. */
+	public String getExtension();
+
+	public byte[] encode(byte[] bytes) throws IOException;
+
+	/**
+	 * Returns a stream that encodes what is written to it into the given
+	 * stream. Closing it finishes the encoding and closes the other one.
+	 */
+	public OutputStream encode(OutputStream out) throws IOException;
+
+	//
+	// Classes
+	//
+
+	static class Gzip implements SkinEncoder {
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public String getExtension() {
+			// NOTE: Same as DiskCacheServlet.EXT_COMPRESSED
+			return ".gz";
+		}
+
+		@Override
+		public byte[] encode(byte[] bytes) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 2);
+			OutputStream out = encode(bos);
+			out.write(bytes);
+			out.close();
+			return bos.toByteArray();
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out);
+		}
+
+	} // class Gzip
+
+} // interface SkinEncoder
@@ -0,0 +1,137 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache for the derived data that {@link SkinResources}
+ * shares between bundles (parsed user agents, compiled files, minified
+ * fragments and so on). Like {@link SkinBundleCache}, the bound is a
+ * total weight: the number of entries by default, or their size in
+ * bytes for subclasses that override {@link #weigh}. When the cache is
+ * full only the least recently used entries are evicted, so churn
+ * doesn't throw away the entries that are still in use.
+ */
+class SkinLruCache<K,V> {
+
+	//
+	// Data
+	//
+
+	private final long maxWeight;
+	private final Map<K,V> entries = new LinkedHashMap<K,V>(64, 0.75f, true);
+	private final Map<K,Long> weights = new HashMap<K,Long>();
+	private long weight;
+	private long evictions;
+
+	//
+	// Constructors
+	//
+
+	/** @param maxWeight Maximum total weight of the cached entries. */
+	public SkinLruCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	//
+	// Public methods
+	//
+
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	/** Adds (or replaces) the entry. Entries heavier than the cache are not stored. */
+	public synchronized void put(K key, V value) {
+		remove(key);
+		long entryWeight = weigh(key, value);
+		if (entryWeight > maxWeight) {
+			return;
+		}
+		entries.put(key, value);
+		weights.put(key, entryWeight);
+		weight += entryWeight;
+		evict();
+	}
+
+	public synchronized V remove(K key) {
+		V value = entries.remove(key);
+		Long entryWeight = weights.remove(key);
+		if (entryWeight != null) {
+			weight -= entryWeight;
+		}
+		return value;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weights.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	//
+	// Protected methods
+	//
+
+	/** Returns the weight of an entry; one unless overridden. */
+	protected long weigh(K key, V value) {
+		return 1;
+	}
+
+	/**
+	 * Called (with the cache locked) for each entry that is evicted to
+	 * make room for others.
+	 */
+	protected void evicted(K key) {
+	}
+
+	//
+	// Private methods
+	//
+
+	private void evict() {
+		Iterator<K> iter = entries.keySet().iterator();
+		while (weight > maxWeight && iter.hasNext()) {
+			K key = iter.next();
+			iter.remove();
+			Long entryWeight = weights.remove(key);
+			if (entryWeight != null) {
+				weight -= entryWeight;
+			}
+			evictions++;
+			evicted(key);
+		}
+	}
+
+} // class SkinLruCache
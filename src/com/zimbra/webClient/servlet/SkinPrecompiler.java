@@ -0,0 +1,316 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates skin bundles ahead of time, with the same code that
+ * {@link SkinResources} uses at runtime, and writes them into a
+ * {@link SkinArtifact} directory. When the artifact is deployed with the
+ * webapp (in <code>/WEB-INF/skinres</code> by default), the servlet
+ * serves these bundles instead of generating them on first request.
+ * <p>
+ * A bundle is generated for every combination of skin, client, bundle
+ * URI, templates setting and locale, and for every distinct browser
+ * class among the configured user agents. Only the browser macros that
+ * the bundle's files actually reference distinguish browser classes so
+ * most bundles exist in only a few variants, and the bundles are stored
+ * under that reduced browser class: any browser, also one that isn't
+ * among the configured user agents, gets a precompiled bundle as long
+ * as it agrees with one of them on the referenced macros. The default
+ * user agents only cover the common browsers; builds should pass the
+ * user agents seen in their traffic (see {@link #setUserAgents}).
+ */
+public class SkinPrecompiler {
+
+	//
+	// Constants
+	//
+
+	/** User agents of the supported browsers, used if none are configured. */
+	public static final List<String> DEFAULT_USER_AGENTS = Collections.unmodifiableList(Arrays.asList(
+		"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36",
+		"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_0) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36",
+		"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/70.0.3538.77 Safari/537.36",
+		"Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:63.0) Gecko/20100101 Firefox/63.0",
+		"Mozilla/5.0 (Macintosh; Intel Mac OS X 10.14; rv:63.0) Gecko/20100101 Firefox/63.0",
+		"Mozilla/5.0 (X11; Linux x86_64; rv:63.0) Gecko/20100101 Firefox/63.0",
+		"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_0) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.0 Safari/605.1.15",
+		"Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/64.0.3282.140 Safari/537.36 Edge/17.17134",
+		"Mozilla/5.0 (Windows NT 10.0; WOW64; Trident/7.0; rv:11.0) like Gecko"
+	));
+
+	private static final String SKIN_MANIFEST = "manifest.xml";
+	private static final String MESSAGES_DIRNAME = "WEB-INF/classes/messages";
+	private static final String MESSAGES_BASENAME = "AjxMsg";
+
+	//
+	// Data
+	//
+
+	private File webrootDir;
+	private File destDir;
+	private String contextPath = "/zimbra";
+	private String version = "";
+	private List<String> skins = new LinkedList<String>();
+	private List<String> clients = new LinkedList<String>(Collections.singletonList("advanced"));
+	private List<String> uris = new LinkedList<String>();
+	private List<String> templates = new LinkedList<String>(Collections.singletonList("true"));
+	private List<Locale> locales = new LinkedList<Locale>();
+	private List<String> userAgents = new LinkedList<String>(DEFAULT_USER_AGENTS);
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private final List<SkinEncoder> encoders = Collections.<SkinEncoder>singletonList(new SkinEncoder.Gzip());
+	private final SkinResources generator = new SkinResources();
+	private SkinArtifact artifact;
+
+	//
+	// Public methods
+	//
+
+	public void setWebrootDir(File dir) {
+		this.webrootDir = dir;
+	}
+
+	public void setDestDir(File dir) {
+		this.destDir = dir;
+	}
+
+	/** The context path of the webapp the artifact is deployed with. */
+	public void setContextPath(String contextPath) {
+		this.contextPath = contextPath;
+	}
+
+	/** The cache buster version of the webapp the artifact is deployed with. */
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	/** The skins to generate, defaults to all skins in the webroot. */
+	public void setSkins(List<String> skins) {
+		this.skins = new LinkedList<String>(skins);
+	}
+
+	public void setClients(List<String> clients) {
+		this.clients = new LinkedList<String>(clients);
+	}
+
+	/** The request URIs of the bundles, e.g. <code>/css/common,login,skin.css</code>. */
+	public void setURIs(List<String> uris) {
+		this.uris = new LinkedList<String>(uris);
+	}
+
+	/** The values of the <code>templates</code> request parameter to generate. */
+	public void setTemplates(List<String> templates) {
+		this.templates = new LinkedList<String>(templates);
+	}
+
+	/** The locales to generate, defaults to the installed message locales. */
+	public void setLocales(List<Locale> locales) {
+		this.locales = new LinkedList<Locale>(locales);
+	}
+
+	public void setUserAgents(List<String> userAgents) {
+		this.userAgents = new LinkedList<String>(userAgents);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Checks that minifying the files of each bundle separately gives
+	 * the same result as minifying the whole bundle. Bundles for which
+	 * it doesn't are stored minified as a whole.
+	 */
+	public void setCheckMinify(boolean checkMinify) {
+		generator.setCheckMinify(checkMinify);
+	}
+
+	/** Returns the number of bundles that failed the minify check. */
+	public long getMinifyMismatches() {
+		return generator.getMinifyMismatches();
+	}
+
+	/**
+	 * Generates all of the bundles and writes the artifact.
+	 *
+	 * @return The number of bundles generated.
+	 */
+	public int precompile() throws IOException {
+		if (webrootDir == null || !webrootDir.isDirectory()) {
+			throw new IOException("webroot is not a directory: " + webrootDir);
+		}
+		if (destDir == null) {
+			throw new IOException("no destination directory");
+		}
+		List<String> skins = this.skins.isEmpty() ? getInstalledSkins() : this.skins;
+		List<Locale> locales = this.locales.isEmpty() ? getInstalledLocales() : this.locales;
+
+		artifact = new SkinArtifact(destDir, webrootDir, contextPath, version);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (final String skin : skins) {
+				for (final String client : clients) {
+					for (final String uri : uris) {
+						for (final String templatesParam : templates) {
+							for (final Locale locale : locales) {
+								futures.add(executor.submit(new Callable<Integer>() {
+									@Override
+									public Integer call() throws Exception {
+										return precompile(uri, skin, client, templatesParam, locale);
+									}
+								}));
+							}
+						}
+					}
+				}
+			}
+			int count = 0;
+			for (Future<Integer> future : futures) {
+				count += future.get();
+			}
+			artifact.store();
+			return count;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException(cause);
+		}
+		finally {
+			executor.shutdownNow();
+			generator.shutdown();
+		}
+	}
+
+	//
+	// Private methods
+	//
+
+	private int precompile(String uri, String skin, String client, String templatesParam, Locale locale)
+			throws IOException {
+		String type = SkinResources.getContentType(uri).replaceAll("^.*/", "");
+		String footprintKey = SkinResources.getFootprintKey(uri, client, skin, templatesParam, version, locale);
+		// NOTE: The manifest may pick files by browser, so the footprint
+		// NOTE: is made up of the macros referenced by the files of any
+		// NOTE: of the browsers.
+		Set<File> inputs = new LinkedHashSet<File>();
+		Map<String,String> substOverrides =
+			SkinResources.getSubstOverrides(contextPath, version, Collections.<String,String>emptyMap());
+		for (String agent : userAgents) {
+			Map<String,String> macros = SkinResources.parseUserAgent(agent);
+			generator.generate(new CharArrayWriter(), webrootDir, uri, skin, null, macros, type,
+					client, locale, templatesParam, substOverrides, inputs, null);
+		}
+		Set<String> footprint = SkinResources.getMacroReferences(inputs);
+		artifact.putFootprint(footprintKey, footprint);
+		artifact.putDependencies(footprintKey, new SkinDependencies(inputs,
+				Collections.<String,String>emptyMap(), Collections.<String,String>emptyMap()));
+		Set<String> browserTypes = new HashSet<String>();
+		int count = 0;
+		for (String agent : userAgents) {
+			Map<String,String> macros = SkinResources.getMacros(SkinResources.parseUserAgent(agent), footprint);
+			String browserType = SkinResources.getMacroNames(macros.keySet());
+			if (!browserTypes.add(browserType)) {
+				continue;
+			}
+			String bundleKey = SkinResources.getBundleKey(uri, type, client, skin, templatesParam, browserType, version, locale);
+			SkinBundle bundle = generator.generateBundle(webrootDir, uri, skin, macros, type, client,
+					locale, templatesParam, contextPath, version, null);
+			artifact.putBundle(bundleKey, bundle, encoders);
+			count++;
+		}
+		return count;
+	}
+
+	private List<String> getInstalledSkins() {
+		List<String> skins = new LinkedList<String>();
+		File[] dirs = new File(webrootDir, "skins").listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				if (new File(dir, SKIN_MANIFEST).isFile()) {
+					skins.add(dir.getName());
+				}
+			}
+		}
+		Collections.sort(skins);
+		return skins;
+	}
+
+	private List<Locale> getInstalledLocales() {
+		Set<String> names = new TreeSet<String>();
+		names.add(Locale.getDefault().toString());
+		String[] filenames = new File(webrootDir, MESSAGES_DIRNAME).list();
+		if (filenames != null) {
+			String prefix = MESSAGES_BASENAME + "_";
+			for (String filename : filenames) {
+				if (filename.startsWith(prefix) && filename.endsWith(".properties")) {
+					names.add(filename.substring(prefix.length(), filename.length() - ".properties".length()));
+				}
+			}
+		}
+		List<Locale> locales = new LinkedList<Locale>();
+		for (String name : names) {
+			locales.add(toLocale(name));
+		}
+		return locales;
+	}
+
+	//
+	// Static functions
+	//
+
+	public static Locale toLocale(String name) {
+		String[] parts = name.split("_", 3);
+		if (parts.length == 3) {
+			return new Locale(parts[0], parts[1], parts[2]);
+		}
+		if (parts.length == 2) {
+			return new Locale(parts[0], parts[1]);
+		}
+		return new Locale(parts[0]);
+	}
+
+} // class SkinPrecompiler
@@ -20,19 +20,36 @@ package com.zimbra.webClient.servlet;
 import java.awt.Color;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -42,10 +59,27 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -69,14 +103,9 @@ import org.w3c.dom.Node;
 
 import com.yahoo.platform.yui.compressor.CssCompressor;
 import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
-import com.zimbra.common.account.Key;
-import com.zimbra.common.localconfig.LC;
-import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.util.HttpUtil;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.cs.account.Entry;
-import com.zimbra.cs.account.soap.SoapProvisioning;
 import com.zimbra.cs.servlet.DiskCacheServlet;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.kabuki.util.Colors;
@@ -96,6 +125,21 @@ public class SkinResources
 
 	public static final String A_IMAGE_CACHE = SkinResources.class.getName()+":images";
 
+	/**
+	 * Request attribute naming the report that an (admin) request
+	 * included by the service servlet wants instead of a skin resource.
+	 */
+	public static final String A_REPORT = SkinResources.class.getName()+":report";
+
+	/** Report of the cached bundles and what they were generated from. */
+	public static final String R_DEPENDENCIES = "dependencies";
+
+	/** Report of the request metrics and cache sizes. */
+	public static final String R_STATS = "stats";
+
+	/** Report of the sizes of the cached bundles and their largest inputs. */
+	public static final String R_SIZES = "sizes";
+
 	private static final String P_SKIN = "skin";
 	private static final String P_DEFAULT_SKIN = "zimbraDefaultSkin";
 	private static final String P_DEFAULT_ADMIN_SKIN = "zimbraDefaultAdminSkin";
@@ -118,9 +162,66 @@ public class SkinResources
 	private static final String V_ONLY = "only";
 
 	private static final long MAX_INCLUDED_TEMPLATES_SIZE = 1 << 13; // 8K
+	private static final long DEFAULT_MEMORY_CACHE_SIZE = 32L << 20; // 32M
+	private static final int MAX_MANIFESTS = 256;
+	private static final int MAX_USER_AGENTS = 1000;
+	private static final int MAX_FOOTPRINTS = 1000;
+	private static final int MAX_APPCACHE_PARTS = 256;
+	private static final int MAX_VALIDATORS = 10000;
+	private static final int MAX_MAPPED_BUNDLES = 1000;
+
+	/** The directories below which changed input files evict bundles. */
+	private static final String[] WATCHED_DIRS = { "skins", "css", "js", "templates" };
+	private static final int MAX_COMPILED_FILES = 5000;
+	private static final int MAX_DIR_LISTINGS = 1000;
+	private static final long DIR_LISTING_CHECK_INTERVAL = 1000; // 1s
+	private static final int MAX_INLINE_IMAGES = 1000;
+	private static final long MAX_INLINE_IMAGES_SIZE = 8L << 20; // 8M
+	private static final int MAX_LARGEST_INPUTS = 5;
+	private static final long DEFAULT_INLINE_IMAGE_BUDGET = 32L << 10; // 32K
+	private static final int MAX_PREPROCESS_QUEUE = 1000;
+	private static final long MAX_MINIFIED_FRAGMENTS_SIZE = 16L << 20; // 16M
+	private static final int MAX_MINIFY_QUEUE = 1000;
+	private static final int DEFAULT_MINIFIER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 
 	private static final String A_TEMPLATES_INCLUDED = "skin.templates.included";
 
+	/**
+	 * <strong>Note:</strong>
+	 * This bundle property is needed because only the generate method
+	 * knows if the templates were included. But we need that information
+	 * on subsequent requests so that we can tell the callee if the
+	 * templates were included.
+	 * <p>
+	 * Not knowing on subsequent requests whether templates were
+	 * included caused bug 26563 and a 0-byte skin.js file to be
+	 * requested even though everything had been inlined into
+	 * launchZCS.jsp.
+	 */
+	static final String BP_TEMPLATES_INCLUDED = "templatesIncluded";
+
+	/**
+	 * Bundle properties with the size (in bytes) of the bundle before and
+	 * after minification and, per encoding, after encoding. The latter
+	 * are named by the encoding, e.g. <code>size.gzip</code>.
+	 */
+	static final String BP_SIZE = "size.";
+	static final String BP_SIZE_SOURCE = BP_SIZE + "source";
+	static final String BP_SIZE_MINIFIED = BP_SIZE + "minified";
+
+	/**
+	 * Bundle property listing the files that contributed the most
+	 * (preprocessed) bytes to the bundle, largest first, as
+	 * <code>bytes path</code> separated by semicolons.
+	 */
+	static final String BP_LARGEST_INPUTS = "largestInputs";
+
+	/** Cache id suffix (and extension) of the bundle properties file. */
+	private static final String EXT_PROPERTIES = ".properties";
+
+	/** Cache id suffix (and extension) of the bundle dependencies file. */
+	private static final String EXT_DEPENDENCIES = ".deps";
+
 	private static final String A_SKIN_FOREGROUND_COLOR = "zimbraSkinForegroundColor";
 	private static final String A_SKIN_BACKGROUND_COLOR = "zimbraSkinBackgroundColor";
 	private static final String A_SKIN_SECONDARY_COLOR = "zimbraSkinSecondaryColor";
@@ -137,9 +238,23 @@ public class SkinResources
 	private static final String A_HELP_DELEGATED_URL = "zimbraHelpDelegatedURL";
 	private static final String A_HELP_STANDARD_URL = "zimbraHelpStandardURL";
 
+	private static final String[] DOMAIN_ATTRS = {
+		A_SKIN_FOREGROUND_COLOR, A_SKIN_BACKGROUND_COLOR, A_SKIN_SECONDARY_COLOR, A_SKIN_SELECTION_COLOR,
+		A_SKIN_LOGO_LOGIN_BANNER, A_SKIN_LOGO_APP_BANNER, A_SKIN_LOGO_URL,
+		A_SKIN_FAVICON,
+		A_HELP_ADMIN_URL, A_HELP_ADVANCED_URL, A_HELP_DELEGATED_URL, A_HELP_STANDARD_URL
+	};
+
+	private static final long DEFAULT_DOMAIN_INFO_TTL = 5 * 60; // 5 minutes
+	private static final long DEFAULT_DOMAIN_INFO_NEGATIVE_TTL = 60; // 1 minute
+	private static final int MAX_DOMAIN_INFOS = 10000;
+
+	private static final String DEFAULT_PRECOMPILED_DIR = "/WEB-INF/skinres";
+
 	private static final String A_VERSION = "version";
 
 	private static final String H_USER_AGENT = "User-Agent";
+	private static final String H_ACCEPT_ENCODING = "Accept-Encoding";
 
 	private static final String C_SKIN = "ZM_SKIN";
 	private static final String C_ADMIN_SKIN = "ZA_SKIN";
@@ -166,11 +281,15 @@ public class SkinResources
 	private static final String RE_WHITESPACE = "\\s+";
 
 	private static final Pattern RE_VERSION = Pattern.compile("\\d+\\.\\d+");
+	private static final Pattern RE_MOZILLA = Pattern.compile("\\s*mozilla");
 
     /*
      * this regex will match any of the below pattern
      * url(/path/name) or url('/path/name') or url("/path/name") or url('/path/name?v=123456789')
     */
+    /** An <code>@image()@</code> that the manifest marked for inlining. */
+    private static final Pattern RE_INLINE_IMAGE =
+        Pattern.compile(Pattern.quote(Manifest.INLINE_MARKER) + "background-image:url\\(([^)]*)\\)");
     private static final Pattern RE_CSSURL = Pattern.compile("^(?!/\\*).*url\\(\'?\"?(.*?)\\??v?=?\\d*\'?\"?\\)");
 
 	private static final String IMAGE_CSS = "img/images.css";
@@ -192,18 +311,294 @@ public class SkinResources
 	//
 
 	/**
-	 * <strong>Note:</strong>
-	 * This is needed because only the generate method knows if the
-	 * templates were included. But we need that information on
-	 * subsequent requests so that we can tell the callee if the
-	 * templates were included.
-	 * <p>
-	 * Not knowing on subsequent requests whether templates were
-	 * included caused bug 26563 and a 0-byte skin.js file to be
-	 * requested even though everything had been inlined into
-	 * launchZCS.jsp.
+	 * Finished bundles, served without touching the disk cache. The
+	 * disk cache is only read when a bundle is not (or no longer) in
+	 * memory.
+	 */
+	private SkinBundleCache memoryCache = newMemoryCache(DEFAULT_MEMORY_CACHE_SIZE);
+
+	/**
+	 * Bundles backed by their (memory-mapped) disk cache files that the
+	 * memory cache doesn't keep, e.g. because it is disabled. They cost
+	 * next to no heap, so they are kept (with their checked inputs)
+	 * rather than mapped and checked again on every request.
+	 */
+	private final SkinLruCache<String,SkinBundle> mappedBundles =
+		new SkinLruCache<String,SkinBundle>(MAX_MAPPED_BUNDLES) {
+			@Override
+			protected void evicted(String cacheId) {
+				unregister(cacheId);
+			}
+		};
+
+	/**
+	 * The entity tags and modification times of the bundles served, by
+	 * cache id, so that conditional requests can be answered without
+	 * the bundles. Kept longer than the bundles in the memory cache;
+	 * the input files of a bundle that is no longer in memory (and so no
+	 * longer watched) are checked before its validator is trusted.
+	 */
+	private final SkinLruCache<String,Validator> validators = new SkinLruCache<String,Validator>(MAX_VALIDATORS);
+
+	/**
+	 * Resolved manifests, shared by all of the bundles (CSS, JS, HTML)
+	 * generated for the same skin, client, browser, locale and domain
+	 * overrides. Manifests are reloaded when their files change.
+	 */
+	private final Map<String,Manifest> manifests = Collections.synchronizedMap(
+		new LinkedHashMap<String,Manifest>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Manifest> eldest) {
+				return size() > MAX_MANIFESTS;
+			}
+		}
+	);
+
+	/**
+	 * Parsed user agents. Browsers send only a small number of distinct
+	 * user agent strings so most requests are classified with a single
+	 * lookup. When the cache is full, the user agents that weren't seen
+	 * for the longest time are dropped.
+	 */
+	private final SkinLruCache<String,UserAgentInfo> userAgents =
+		new SkinLruCache<String,UserAgentInfo>(MAX_USER_AGENTS);
+	private final AtomicLong userAgentHits = new AtomicLong();
+	private final AtomicLong userAgentMisses = new AtomicLong();
+
+	/**
+	 * The browser macros referenced by the files of a bundle, keyed by
+	 * everything in the cache id except for the browser type.
+	 */
+	private final Map<String,Set<String>> footprints = Collections.synchronizedMap(
+		new LinkedHashMap<String,Set<String>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Set<String>> eldest) {
+				if (size() > MAX_FOOTPRINTS) {
+					unregister(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		}
+	);
+
+	/**
+	 * The parts of the appcache manifests that don't depend on the
+	 * account, i.e. the images referenced by the style sheets (by the
+	 * cache id of the manifest) and, for debug requests, the scripts of
+	 * the application packages.
+	 */
+	private final Map<String,String> appcacheParts = Collections.synchronizedMap(
+		new LinkedHashMap<String,String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+				if (size() > MAX_APPCACHE_PARTS) {
+					unregister(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		}
+	);
+
+	/**
+	 * Compiled source files, shared by all servlet instances. When the
+	 * cache is full, the files that weren't used for the longest time
+	 * are dropped.
 	 */
-	private Map<String,Boolean> included = new HashMap<String,Boolean>();
+	private static final SkinLruCache<File,CompiledFile> compiledFiles =
+		new SkinLruCache<File,CompiledFile>(MAX_COMPILED_FILES);
+
+	/**
+	 * Names of the files in the directories probed for locale variants,
+	 * shared by all servlet instances. A listing is reused as long as
+	 * the modification time of its directory doesn't change. That time
+	 * is checked at most once per {@link #DIR_LISTING_CHECK_INTERVAL}
+	 * so that probing a directory for several files (and locales) costs
+	 * one stat, not one per candidate. When the cache is full, the
+	 * listings that weren't used for the longest time are dropped.
+	 */
+	private static final SkinLruCache<File,DirListing> dirListings =
+		new SkinLruCache<File,DirListing>(MAX_DIR_LISTINGS);
+
+	/**
+	 * Images that are inlined as data URIs, by content hash, and the
+	 * content hashes of the image files. Shared by all servlet instances.
+	 * The data URIs are bounded by size and the hashes by count; when
+	 * either is full, the entries that weren't used for the longest time
+	 * are dropped.
+	 */
+	private static final SkinLruCache<String,String> inlineImages =
+		new SkinLruCache<String,String>(MAX_INLINE_IMAGES_SIZE) {
+			@Override
+			protected long weigh(String hash, String dataURI) {
+				return 2L * (hash.length() + dataURI.length());
+			}
+		};
+	private static final SkinLruCache<File,ImageHash> imageHashes =
+		new SkinLruCache<File,ImageHash>(MAX_INLINE_IMAGES);
+
+	/**
+	 * Images referenced with <code>@image()@</code> that are no larger
+	 * than this (in bytes) are inlined into the CSS as data URIs, until
+	 * the budget of the bundle is used up. Zero disables inlining.
+	 */
+	private long inlineImageMaxSize;
+	private long inlineImageBudget = DEFAULT_INLINE_IMAGE_BUDGET;
+
+	/**
+	 * Largest minified size (in bytes) of a CSS or JavaScript bundle
+	 * before a warning is logged. Zero means no budget.
+	 */
+	private long cssBudget;
+	private long jsBudget;
+
+	/**
+	 * Minified output of preprocessed files, by content type and hash
+	 * of the preprocessed text. Most files preprocess to the same text
+	 * for every browser and locale so only the files that differ are
+	 * compressed again when another variant of a bundle is generated.
+	 * Bounded by size since a fragment can be a few bytes or hundreds
+	 * of kilobytes.
+	 */
+	private static final SkinLruCache<String,String> minifiedFragments =
+		new SkinLruCache<String,String>(MAX_MINIFIED_FRAGMENTS_SIZE) {
+			@Override
+			protected long weigh(String key, String minified) {
+				return 2L * (key.length() + minified.length());
+			}
+		};
+
+	/** Logs the problems found by the JavaScript compressor. It has no state so it is shared. */
+	private static final ErrorReporter MINIFY_ERROR_REPORTER = new ErrorReporter() {
+
+		@Override
+		public void warning(String message, String sourceName,
+							int line, String lineSource, int lineOffset) {
+			if (line < 0) {
+				ZimbraLog.webclient.warn("\n" + message);
+			} else {
+				ZimbraLog.webclient.warn("\n" + line + ':' + lineOffset + ':' + message);
+			}
+		}
+
+		@Override
+		public void error(String message, String sourceName,
+						  int line, String lineSource, int lineOffset) {
+			if (line < 0) {
+				ZimbraLog.webclient.error("\n" + message);
+			} else {
+				ZimbraLog.webclient.error("\n" + line + ':' + lineOffset + ':' + message);
+			}
+		}
+
+		@Override
+		public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
+			error(message, sourceName, line, lineSource, lineOffset);
+			return new EvaluatorException(message);
+		}
+	};
+
+	/**
+	 * Fails on the errors found by the JavaScript compressor in a single
+	 * file without logging them: such a file is minified as part of the
+	 * whole bundle instead (where the errors are logged if they remain).
+	 */
+	private static final ErrorReporter FRAGMENT_ERROR_REPORTER = new ErrorReporter() {
+
+		@Override
+		public void warning(String message, String sourceName,
+							int line, String lineSource, int lineOffset) {
+			MINIFY_ERROR_REPORTER.warning(message, sourceName, line, lineSource, lineOffset);
+		}
+
+		@Override
+		public void error(String message, String sourceName,
+						  int line, String lineSource, int lineOffset) {
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: fragment not minified: " + line + ':' + lineOffset + ':' + message);
+		}
+
+		@Override
+		public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
+			error(message, sourceName, line, lineSource, lineOffset);
+			return new EvaluatorException(message);
+		}
+	};
+
+	/**
+	 * The first characters of a minified script that can continue the
+	 * last statement of the previous script.
+	 */
+	private static final String STATEMENT_CONTINUATIONS = "([+-/`";
+
+	/** Skin attributes of the domain, by virtual host name. */
+	private SkinDomainInfoCache domainInfos;
+
+	/**
+	 * Supported content encodings, in order of preference. Every bundle
+	 * is encoded with all of them when it is generated.
+	 */
+	private final List<SkinEncoder> encoders = new ArrayList<SkinEncoder>();
+
+	/**
+	 * Preprocesses the files of a bundle in parallel. When the queue is
+	 * full, the requesting thread preprocesses the file itself.
+	 */
+	private final ThreadPoolExecutor preprocessor =
+		newExecutor("SkinPreprocessor", Runtime.getRuntime().availableProcessors(), MAX_PREPROCESS_QUEUE,
+			new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					// NOTE: Unlike CallerRunsPolicy this also runs the task
+					// NOTE: after shutdown so that nobody waits for it forever.
+					r.run();
+				}
+			});
+
+	/**
+	 * Minifies the files of a bundle. The number of threads limits how
+	 * many files are compressed at once, no matter how many requests
+	 * miss the cache at the same time. When the queue is full, the
+	 * request fails with a 503 rather than minifying on its own thread
+	 * (see {@link OverloadedException}). The requesting thread still
+	 * waits for its files to be minified.
+	 */
+	private final ThreadPoolExecutor minifier =
+		newExecutor("SkinMinifier", DEFAULT_MINIFIER_THREADS, MAX_MINIFY_QUEUE, new ThreadPoolExecutor.AbortPolicy());
+
+	private final AtomicLong minifiedBundles = new AtomicLong();
+	private final AtomicLong minifyTime = new AtomicLong();
+	private final AtomicLong maxMinifyTime = new AtomicLong();
+	private final AtomicLong minifiedFragmentHits = new AtomicLong();
+	private final AtomicLong minifiedFragmentMisses = new AtomicLong();
+	private final AtomicLong minifyFallbacks = new AtomicLong();
+	private final AtomicLong minifyMismatches = new AtomicLong();
+	private final AtomicLong minifyRejections = new AtomicLong();
+	private boolean checkMinify;
+
+	/** Bundles generated at build time, if deployed with the webapp. */
+	private SkinArtifact precompiled;
+
+	/**
+	 * Watches the input files of the generated bundles so that only the
+	 * bundles affected by a change are evicted. Null if disabled.
+	 */
+	private SkinWatcher watcher;
+
+	/**
+	 * Cache ids of the bundles whose input files changed. Their disk
+	 * cache files (and precompiled bundles) are ignored until they have
+	 * been generated again.
+	 */
+	private final Set<String> staleBundles = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+	/** Request metrics, also registered as an MBean. */
+	private final SkinResourcesStats stats = new SkinResourcesStats();
+	private ObjectName statsName;
+
+	/** Bundles currently being generated, by cache id. */
+	private final ConcurrentMap<String,FutureTask<SkinBundle>> generating =
+		new ConcurrentHashMap<String,FutureTask<SkinBundle>>();
 
 	//
 	// Constructors
@@ -226,12 +621,147 @@ public class SkinResources
         } else {
             this.supportsGzip = true;
         }
+        if (this.supportsGzip) {
+            this.encoders.add(new SkinEncoder.Gzip());
+        }
+        val = getServletConfig().getInitParameter("memoryCacheSize");
+        if (val != null) {
+            try {
+                this.memoryCache = newMemoryCache(Long.parseLong(val.trim()));
+            }
+            catch (NumberFormatException e) {
+                ZimbraLog.webclient.warn("Invalid memoryCacheSize init parameter: " + val);
+            }
+        }
+        val = getServletConfig().getInitParameter("minifierThreads");
+        if (val != null) {
+            try {
+                int threads = Math.max(1, Integer.parseInt(val.trim()));
+                if (threads > this.minifier.getMaximumPoolSize()) {
+                    this.minifier.setMaximumPoolSize(threads);
+                    this.minifier.setCorePoolSize(threads);
+                }
+                else {
+                    this.minifier.setCorePoolSize(threads);
+                    this.minifier.setMaximumPoolSize(threads);
+                }
+            }
+            catch (NumberFormatException e) {
+                ZimbraLog.webclient.warn("Invalid minifierThreads init parameter: " + val);
+            }
+        }
+        this.inlineImageMaxSize = getInitParameterLong("inlineImageMaxSize", 0);
+        this.inlineImageBudget = getInitParameterLong("inlineImageBudget", DEFAULT_INLINE_IMAGE_BUDGET);
+        this.cssBudget = getInitParameterLong("cssBudget", 0);
+        this.jsBudget = getInitParameterLong("jsBudget", 0);
+        this.checkMinify = Boolean.valueOf(getServletConfig().getInitParameter("checkMinify"));
+        long ttl = getInitParameterLong("domainInfoTTL", DEFAULT_DOMAIN_INFO_TTL);
+        long negativeTtl = getInitParameterLong("domainInfoNegativeTTL", DEFAULT_DOMAIN_INFO_NEGATIVE_TTL);
+        this.domainInfos = new SkinDomainInfoCache(DOMAIN_ATTRS, ttl * 1000, negativeTtl * 1000, MAX_DOMAIN_INFOS);
+        val = getServletConfig().getInitParameter("watchFiles");
+        String rootDirname = getServletContext().getRealPath("/");
+        if ((val == null || Boolean.valueOf(val)) && rootDirname != null) {
+            List<File> roots = new LinkedList<File>();
+            for (String dirname : WATCHED_DIRS) {
+                roots.add(new File(rootDirname, dirname));
+            }
+            try {
+                this.watcher = new SkinWatcher(roots, new SkinWatcher.Listener() {
+                    @Override
+                    public void changed(Set<String> keys) {
+                        evict(keys);
+                    }
+                });
+            }
+            catch (IOException e) {
+                ZimbraLog.webclient.warn("Unable to watch skin files; use flushCache to pick up changes", e);
+            }
+        }
+        try {
+            this.statsName = new ObjectName("com.zimbra.webClient:type=SkinResources,context=" +
+                ObjectName.quote(getServletContext().getContextPath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.stats, this.statsName);
+        }
+        catch (JMException e) {
+            ZimbraLog.webclient.warn("Unable to register skin resources MBean", e);
+            this.statsName = null;
+        }
+        val = getServletConfig().getInitParameter("precompiledDir");
+        String precompiledDirname = getServletContext().getRealPath(val != null ? val : DEFAULT_PRECOMPILED_DIR);
+        if (precompiledDirname != null) {
+            try {
+                this.precompiled = SkinArtifact.load(new File(precompiledDirname),
+                    rootDirname != null ? new File(rootDirname) : null);
+                if (this.precompiled != null) {
+                    ZimbraLog.webclient.info("Using precompiled skin resources in " + precompiledDirname +
+                        " (version " + this.precompiled.getVersion() + ")");
+                }
+            }
+            catch (IOException e) {
+                ZimbraLog.webclient.warn("Unable to load precompiled skin resources in " + precompiledDirname, e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (domainInfos != null) {
+            domainInfos.shutdown();
+        }
+        shutdown();
+        if (watcher != null) {
+            watcher.shutdown();
+        }
+        if (statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+            }
+            catch (JMException e) {
+                // ignore
+            }
+        }
+        super.destroy();
+    }
+
+    /**
+     * Stops the preprocessor and minifier threads. Also used when the
+     * servlet generates bundles without being deployed (see
+     * {@link SkinPrecompiler}).
+     */
+    void shutdown() {
+        preprocessor.shutdownNow();
+        minifier.shutdownNow();
+    }
+
+    private long getInitParameterLong(String name, long defaultValue) {
+        String val = getServletConfig().getInitParameter(name);
+        if (val != null) {
+            try {
+                return Long.parseLong(val.trim());
+            }
+            catch (NumberFormatException e) {
+                ZimbraLog.webclient.warn("Invalid " + name + " init parameter: " + val);
+            }
+        }
+        return defaultValue;
     }
 
 	@Override
     protected boolean flushCache(ServletRequest req) {
 		boolean flushed = super.flushCache(req);
 		if (flushed) {
+			memoryCache.clear();
+			mappedBundles.clear();
+			validators.clear();
+			manifests.clear();
+			domainInfos.clear();
+			footprints.clear();
+			appcacheParts.clear();
+			dirListings.clear();
+			staleBundles.clear();
+			if (watcher != null) {
+				watcher.clear();
+			}
 			// NOTE: The app:imginfo tag for the standard client stores its
 			// NOTE: image cache in this servlet's ServletContext object so
 			// NOTE: that the image info can be flushed with the command:
@@ -262,6 +792,12 @@ public class SkinResources
 	@Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException, ServletException {
+		String report = (String)req.getAttribute(A_REPORT);
+		if (report != null) {
+			doReport(report, req, resp);
+			return;
+		}
+
 		String uri = getRequestURI(req);
 		String contentType = getContentType(uri);
 		String type = contentType.replaceAll("^.*/", "");
@@ -274,32 +810,51 @@ public class SkinResources
 		String cacheBusterVersion = (String) req.getAttribute(A_VERSION);
 
 		String userAgent = getUserAgent(req);
-		Map<String, String> macros = parseUserAgent(userAgent);
-		String browserType = getMacroNames(macros.keySet());
+		UserAgentInfo agentInfo = getUserAgentInfo(userAgent);
+		Map<String, String> macros = agentInfo.macros;
+		String browserType = agentInfo.browserType;
 
 		String skin = getSkin(req);
 		String templates = req.getParameter(P_TEMPLATES);
 		if (templates == null) templates = V_TRUE;
 		String serverName = getServerName(req);
-
-		String cacheId = serverName + ":" + uri + ":" + client + ":" + skin + "/templates=" + templates + ":" + browserType + ":" + cacheBusterVersion;
-
 		Locale locale = getLocale(req);
-		if (type.equals(T_JAVASCRIPT) || type.equals(T_CSS) || type.equals(T_APPCACHE)) {
-			cacheId += ":" + locale;
-		}
 
-		String compressStr = req.getParameter(P_COMPRESS);
-		boolean compress =
-			supportsGzip &&
-			(compressStr != null && (compressStr.equals("true") || compressStr.equals("1")))
-		;
-		compress = compress && macros.get("MSIE_6") == null;
-		// NOTE: Keep compressed extension at end of cacheId.
-		if (compress) {
-			cacheId += EXT_COMPRESSED;
+		// NOTE: Most browser macros don't affect a given bundle at all. Once
+		// NOTE: we know which macros the bundle's files reference, only those
+		// NOTE: are used for generation and in the cache id so that browsers
+		// NOTE: which differ only in irrelevant macros share the bundle.
+		String footprintKey = serverName + ":" + getFootprintKey(uri, client, skin, templates, cacheBusterVersion, locale);
+		Set<String> footprint = footprints.get(footprintKey);
+		// NOTE: The footprint from the build is only valid as long as the
+		// NOTE: skin files haven't been changed on this server.
+		String precompiledKey = getFootprintKey(uri, client, skin, templates, cacheBusterVersion, locale);
+		if (footprint == null && precompiled != null) {
+			long start = System.currentTimeMillis();
+			if (precompiled.isCurrent(precompiledKey)) {
+				footprint = precompiled.getFootprint(precompiledKey);
+			}
+			// NOTE: Remembered (and watched) so that the inputs are only
+			// NOTE: checked once.
+			if (footprint != null) {
+				footprints.put(footprintKey, footprint);
+				if (watcher != null) {
+					watcher.register(footprintKey, precompiled.getDependencies(precompiledKey).getFiles(), start);
+				}
+			}
+		}
+		if (footprint != null) {
+			macros = getMacros(macros, footprint);
+			browserType = getMacroNames(macros.keySet());
 		}
 
+		String bundleKey = getBundleKey(uri, type, client, skin, templates, browserType, cacheBusterVersion, locale);
+		String cacheId = serverName + ":" + bundleKey;
+
+		// NOTE: All encoded variants share a single cache entry; the
+		// NOTE: encoder's extension is only appended for the disk file.
+		SkinEncoder encoder = getEncoder(req, agentInfo);
+
 		if (ZimbraLog.webclient.isDebugEnabled()) {
 			ZimbraLog.webclient.debug("DEBUG: === debug is " + debug+" ("+debugStr+") ===");
 			ZimbraLog.webclient.debug("DEBUG: querystring=" + req.getQueryString());
@@ -311,384 +866,1007 @@ public class SkinResources
 			ZimbraLog.webclient.debug("DEBUG: skin=" + skin);
 			ZimbraLog.webclient.debug("DEBUG: templates="+templates);
 			ZimbraLog.webclient.debug("DEBUG: browserType=" + browserType);
+			ZimbraLog.webclient.debug("DEBUG: userAgents: " + getUserAgentStats());
 			ZimbraLog.webclient.debug("DEBUG: locale=" + locale);
 			ZimbraLog.webclient.debug("DEBUG: cacheId=" + cacheId);
+			ZimbraLog.webclient.debug("DEBUG: encoding=" + (encoder != null ? encoder.getName() : "identity"));
 		}
 
-		// generate buffer
-		String buffer = null;
-        File file = null;
-        //To do have to find a way to cache the appcache file
-        if (!type.equals(T_APPCACHE) && !debug) {
-            file = getCacheFile(cacheId);
-        }
-		if (file == null || !file.exists()) {
-			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: generating buffer");
-			buffer = generate(req, resp, cacheId, macros, type, client, locale, templates, cacheBusterVersion);
-			if (!debug) {
-				if (type.equals(T_CSS)) {
-					CssCompressor compressor = new CssCompressor(new StringReader(buffer));
-					StringWriter out = new StringWriter();
-					compressor.compress(out, 0);
-					buffer = out.toString();
-				}
-				if (type.equals(T_JAVASCRIPT)) {
-					JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(buffer), new ErrorReporter() {
-
-						@Override
-                        public void warning(String message, String sourceName,
-											int line, String lineSource, int lineOffset) {
-							if (line < 0) {
-								ZimbraLog.webclient.warn("\n" + message);
-							} else {
-								ZimbraLog.webclient.warn("\n" + line + ':' + lineOffset + ':' + message);
-							}
-						}
-
-						@Override
-                        public void error(String message, String sourceName,
-										  int line, String lineSource, int lineOffset) {
-							if (line < 0) {
-								ZimbraLog.webclient.error("\n" + message);
-							} else {
-								ZimbraLog.webclient.error("\n" + line + ':' + lineOffset + ':' + message);
-							}
-						}
-
-						@Override
-                        public EvaluatorException runtimeError(String message, String sourceName, int line, String lineSource, int lineOffset) {
-							error(message, sourceName, line, lineSource, lineOffset);
-							return new EvaluatorException(message);
-						}
-					});
-					StringWriter out = new StringWriter();
-					compressor.compress(out, 0, true, false, false, false);
-					buffer = out.toString();
-				}
-				ZimbraLog.webclient.debug("DEBUG: buffer.length: "+buffer.length());
-
-				// write buffer to cache file
-				if (!type.equals(T_APPCACHE) && !debug) {
-					// NOTE: This assumes that the cacheId will *end* with the compressed
-					// NOTE: extension. Therefore, make sure to keep in sync.
-					String uncompressedCacheId = compress ?
-						cacheId.substring(0, cacheId.length() - EXT_COMPRESSED.length()) : cacheId;
-
-					// store uncompressed file in cache
-					file = createCacheFile(uncompressedCacheId, type);
-					if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: buffer file: "+file);
-					copy(buffer, file);
-					putCacheFile(uncompressedCacheId, file);
-
-					// store compressed file in cache
-					if (compress) {
-						String compressedCacheId = cacheId;
-						File gzfile = createCacheFile(compressedCacheId, type+EXT_COMPRESSED);
-						if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: buffer file: " + gzfile);
-						file = compress(file, gzfile);
-						putCacheFile(compressedCacheId, file);
-					}
+		// get bundle
+		// NOTE: The appcache manifest depends on the account so it is
+		// NOTE: never cached as a whole, only the parts that don't (see
+		// NOTE: appcacheParts).
+		boolean cacheable = !type.equals(T_APPCACHE) && !debug;
+		boolean conditional = cacheable && !isIncludedRequest(req) &&
+			(req.getHeader("If-None-Match") != null || req.getHeader("If-Modified-Since") != null);
+		// NOTE: A revalidation of a bundle we have served before is answered
+		// NOTE: without looking up, generating or encoding the bundle.
+		if (conditional) {
+			Validator validator = validators.get(cacheId);
+			String etag = validator != null ? validator.getETag(encoder) : null;
+			if (etag != null && isNotModified(req, etag, validator.lastModified) && isCurrent(cacheId, validator)) {
+				sendNotModified(req, resp, etag, validator.lastModified, type, skin);
+				return;
+			}
+		}
+		SkinBundle bundle = null;
+		String tier = SkinResourcesStats.TIER_GENERATE;
+		if (cacheable) {
+			bundle = getRetainedBundle(cacheId);
+			tier = SkinResourcesStats.TIER_MEMORY;
+			if (bundle == null) {
+				bundle = getCachedBundle(cacheId, type);
+				tier = SkinResourcesStats.TIER_DISK;
+			}
+			if (bundle == null) {
+				bundle = getPrecompiledBundle(req, cacheId, bundleKey, precompiledKey, serverName, type);
+				tier = SkinResourcesStats.TIER_PRECOMPILED;
+			}
+		}
+		if (bundle == null) {
+			tier = SkinResourcesStats.TIER_GENERATE;
+			try {
+				if (cacheable) {
+					bundle = generateCachedBundle(req, resp, uri, skin, cacheId, footprintKey, macros, type, client, locale, templates, cacheBusterVersion);
+				}
+				else {
+					bundle = generateBundle(req, resp, uri, skin, cacheId, macros, type, client, locale, templates, cacheBusterVersion, debug, null);
 				}
 			}
+			catch (OverloadedException e) {
+				ZimbraLog.webclient.warn("Unable to generate skin bundle " + cacheId + ": " + e.getMessage());
+				resp.setHeader("Retry-After", "1");
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return;
+			}
 		} else {
 			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: using previous buffer");
 		}
 
+		// NOTE: Only variants that are already encoded are checked here;
+		// NOTE: a missing variant is encoded for the full response anyway.
+		boolean encoded = bundle.hasContent(encoder);
+		if (conditional && encoded) {
+			String etag = bundle.getETag(encoder);
+			putValidator(cacheId, bundle, encoder, etag);
+			if (isNotModified(req, etag, bundle.getLastModified())) {
+				sendNotModified(req, resp, etag, bundle.getLastModified(), type, skin);
+				return;
+			}
+		}
+
+		bundle.hit();
+		stats.hit(type, skin, tier);
+		if (cacheable && !encoded) {
+			putEncodedBundle(cacheId, bundle, encoder);
+		}
+		int length = bundle.getLength(encoder);
+
 		// set headers for regular requests
 		if (!isIncludedRequest(req)) {
-			// We browser sniff so need to make sure any caches do the same.
-			resp.addHeader("Vary", "User-Agent");
-			// Cache It!
-			String maxAge = (String)req.getAttribute("init.Expires");
-			if (maxAge == null) {
-				maxAge = "2595600";
-			}
-			resp.setHeader("Cache-control", "public, max-age="+maxAge);
+			setCacheHeaders(req, resp);
+			// Let browsers and proxies revalidate without a new download.
+			if (cacheable) {
+				String etag = bundle.getETag(encoder);
+				putValidator(cacheId, bundle, encoder, etag);
+				resp.setHeader("ETag", etag);
+				resp.setDateHeader("Last-Modified", bundle.getLastModified());
+			}
 			resp.setContentType(type.equals(T_APPCACHE)? "text/cache-manifest" : contentType);
 
-			if (compress && file != null) {
-				resp.setHeader("Content-Encoding", "gzip");
+			if (encoder != null) {
+				resp.setHeader("Content-Encoding", encoder.getName());
 			}
-            if (type.equals(T_APPCACHE)){
+			if (type.equals(T_APPCACHE)){
 				resp.setHeader("Cache-Control", "max-age=0");
 				resp.setHeader("Expires", "Tue, 24 Jan 2000 17:46:50 GMT");
 				resp.setHeader("Pragma", "no-cache");
 				// Returning a 404 or 500 for application cache file will disregard the entire cache.
-				if (buffer != null && buffer.length() == 0) {
+				if (bundle.getLength() == 0) {
 					resp.setStatus(404);
 				}
 			}
 
-			// NOTE: I cast the file length to an int which I think is
-			//	   fine. If the aggregated contents are larger than
-			//	   Integer.MAX_VALUE, then we've got other problems. ;)
-			//
-			// NOTE: We can only be certain we know the final size if we are
-			// NOTE: *not* compressing the output OR if we're just writing
-			// NOTE: the contents of the generated file to the stream.
-			if (!compress || file != null) {
-				resp.setContentLength(file != null ? (int)file.length() : buffer.length());
-			}
+			resp.setContentLength(length);
 		}
 
 		// write buffer
-		if (file != null) {
-			// NOTE: If we saved the buffer to a file and compression is
-			// NOTE: enabled then the file has *already* been compressed
-			// NOTE: and the Content-Encoding header has been added.
-			copy(file, resp, false);
-		}
-		else {
-			copy(buffer, resp, compress);
-		}
+		OutputStream out = resp.getOutputStream();
+		bundle.writeContent(encoder, out);
+		out.flush();
+		stats.served(type, skin, encoder != null, length);
 
 		// keep track of whether the templates were included
-		Boolean included = this.included.get(cacheId);
+		String included = bundle.getProperty(BP_TEMPLATES_INCLUDED);
 		if (included != null) {
-			req.setAttribute(A_TEMPLATES_INCLUDED, included);
+			req.setAttribute(A_TEMPLATES_INCLUDED, Boolean.valueOf(included));
 		}
 
 	} // doGet(HttpServletRequest,HttpServletResponse)
 
 	//
-	// Private methods
+	// Protected methods
 	//
 
-	private Locale getLocale(HttpServletRequest req) {
-		String language = null, country = null, variant = null;
-		String locale = req.getParameter(P_LOCALE);
-		if (locale != null) {
-			StringTokenizer tokenizer = new StringTokenizer(locale, "_");
-			language = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
-			country = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
-			variant = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+	/**
+	 * Writes the named report as plain text. The <code>id</code>
+	 * parameter, if present, restricts the report to the cache ids that
+	 * contain it.
+	 */
+	protected void doReport(String report, HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		String filter = req.getParameter("id");
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(resp.getOutputStream(), "UTF-8"));
+		if (report.equals(R_DEPENDENCIES)) {
+			for (Map.Entry<String,SkinBundle> entry : memoryCache.entries()) {
+				String cacheId = entry.getKey();
+				if (filter != null && !cacheId.contains(filter)) {
+					continue;
+				}
+				SkinBundle bundle = entry.getValue();
+				SkinDependencies deps = bundle.getDependencies();
+				out.println(cacheId);
+				out.println("    length=" + bundle.getLength() + " hits=" + bundle.getHits() +
+					" lastModified=" + new Date(bundle.getLastModified()) + " mapped=" + bundle.isMapped() +
+					" stale=" + (deps != null ? String.valueOf(deps.isStale()) : "unknown"));
+				if (deps != null) {
+					deps.print(out, "    ");
+				}
+			}
+			for (String cacheId : new TreeSet<String>(staleBundles)) {
+				if (filter == null || cacheId.contains(filter)) {
+					out.println(cacheId);
+					out.println("    stale=true (evicted)");
+				}
+			}
 		}
-		else {
-			language = req.getParameter(P_LANGUAGE);
-			country = req.getParameter(P_COUNTRY);
-			variant = req.getParameter(P_VARIANT);
+		else if (report.equals(R_STATS)) {
+			out.print(stats.getReport());
+			out.println("[caches]");
+			out.println("    bundles=" + memoryCache.size() + " weight=" + memoryCache.getWeight() +
+				" maxWeight=" + memoryCache.getMaxWeight() + " mapped=" + mappedBundles.size() +
+				" validators=" + validators.size() + " stale=" + staleBundles.size());
+			out.println("    manifests=" + manifests.size() + " footprints=" + footprints.size() +
+				" appcacheParts=" + appcacheParts.size() + " compiledFiles=" + compiledFiles.size() +
+				" minifiedFragments=" + minifiedFragments.size() + "/" + minifiedFragments.getWeight() +
+				" dirListings=" + dirListings.size() +
+				" inlineImages=" + inlineImages.size() + "/" + inlineImages.getWeight() +
+				" domainInfos=" + domainInfos.size() + " watchedFiles=" + (watcher != null ? watcher.size() : 0));
+			out.println("    userAgents: " + getUserAgentStats());
+			out.println("    minifier: " + getMinifierStats());
 		}
-		if (language != null) {
-			if (country != null) {
-				if (variant != null) {
-					return new Locale(language, country, variant);
+		else if (report.equals(R_SIZES)) {
+			for (Map.Entry<String,SkinBundle> entry : memoryCache.entries()) {
+				String cacheId = entry.getKey();
+				if (filter != null && !cacheId.contains(filter)) {
+					continue;
+				}
+				SkinBundle bundle = entry.getValue();
+				String source = bundle.getProperty(BP_SIZE_SOURCE);
+				StringBuilder str = new StringBuilder("    source=");
+				str.append(source != null ? source : "unknown");
+				str.append(" minified=").append(bundle.getLength());
+				for (SkinEncoder encoder : encoders) {
+					// NOTE: Bundles from the build-time artifact don't have
+					// NOTE: the sizes recorded.
+					String size = bundle.getProperty(BP_SIZE + encoder.getName());
+					if (size == null && bundle.hasContent(encoder)) {
+						size = String.valueOf(bundle.getLength(encoder));
+					}
+					str.append(' ').append(encoder.getName()).append('=').append(size != null ? size : "unknown");
+				}
+				long budget = getBudget(bundle.getType());
+				if (budget > 0) {
+					str.append(" budget=").append(budget);
+					if (bundle.getLength() > budget) {
+						str.append(" [over budget]");
+					}
+				}
+				out.println(cacheId);
+				out.println(str);
+				String largest = bundle.getProperty(BP_LARGEST_INPUTS);
+				if (largest != null && largest.length() > 0) {
+					for (String input : largest.split(";")) {
+						out.println("    input " + input);
+					}
 				}
-				return new Locale(language, country);
 			}
-			return new Locale(language);
 		}
-		return req.getLocale();
-	} // getLocale(HttpServletRequest):Locale
-
-	private String generate(HttpServletRequest req, HttpServletResponse resp,
-							String cacheId, Map<String, String> macros,
-							String type, String client, Locale requestedLocale,
-							String templatesParam, String cacheBusterVersion)
-			throws IOException {
-		String commentStart = "/* ";
-		String commentContinue = " * ";
-		String commentEnd = " */";
-		if (type.equals(T_HTML)) {
-			commentStart = "<!-- ";
-			commentContinue = " - ";
-			commentEnd = " -->";
+		else {
+			out.println("Unknown report: " + report);
 		}
+		out.flush();
+	}
 
-		// create data buffers
-		CharArrayWriter cout = new CharArrayWriter(4096 << 2); // 16K buffer to start
-		PrintWriter out = new PrintWriter(cout);
-
-		// get data
-		String skin = getSkin(req);
-		out.println(commentStart);
-		for (String mname : macros.keySet()) {
-			String mvalue = macros.get(mname);
-			out.print(commentContinue);
-			out.println("#define " + mname + " " + mvalue);
+	/**
+	 * Returns the cached bundle for the given cache id. The in-memory
+	 * cache is checked first; the disk cache is only consulted when the
+	 * bundle is not in memory (e.g. after it was evicted) and the bundle
+	 * read from disk is promoted back into memory.
+	 */
+	protected SkinBundle getCachedBundle(String cacheId, String type) throws IOException {
+		SkinBundle bundle = getRetainedBundle(cacheId);
+		if (bundle != null) {
+			return bundle;
 		}
-		out.println(commentEnd);
-		out.println();
+		if (staleBundles.contains(cacheId)) {
+			return null;
+		}
+		File file = getCacheFile(cacheId);
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: loading buffer file: "+file);
+		// NOTE: Bundles too large for the memory cache are served from
+		// NOTE: the (memory-mapped) cache files instead of being read
+		// NOTE: into the heap on every request.
+		boolean mapped = !memoryCache.accepts(file.length());
+		// NOTE: The inputs are unknown after a restart; the cache file
+		// NOTE: is at least as new as the newest of them.
+		bundle = mapped
+			   ? SkinBundle.map(type, file)
+			   : new SkinBundle(type, Files.readAllBytes(file.toPath()), file.lastModified());
+		for (SkinEncoder encoder : encoders) {
+			File encfile = getCacheFile(cacheId + encoder.getExtension());
+			if (encfile != null && encfile.exists()) {
+				if (mapped) {
+					bundle.putContent(encoder, encfile);
+				}
+				else {
+					bundle.putContent(encoder, Files.readAllBytes(encfile.toPath()));
+				}
+			}
+		}
+		File propsfile = getCacheFile(cacheId + EXT_PROPERTIES);
+		if (propsfile != null && propsfile.exists()) {
+			bundle.putProperties(readProperties(propsfile));
+		}
+		// NOTE: Check the inputs of bundles cached before a restart;
+		// NOTE: changes since then weren't seen by the watcher.
+		File depsfile = getCacheFile(cacheId + EXT_DEPENDENCIES);
+		if (depsfile != null && depsfile.exists()) {
+			long start = System.currentTimeMillis();
+			SkinDependencies deps = SkinDependencies.read(depsfile);
+			if (deps.isStale()) {
+				if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: stale buffer file: "+file);
+				staleBundles.add(cacheId);
+				return null;
+			}
+			bundle.setDependencies(deps);
+			if (watcher != null) {
+				watcher.register(cacheId, deps.getFiles(), start);
+			}
+		}
+		retain(cacheId, bundle);
+		return bundle;
+	}
 
-		String uri = getRequestURI(req);
-		String filenames = uri;
-		String ext = "." + type;
+	/**
+	 * Returns the bundle from the build-time artifact, if there is one
+	 * for the bundle and the artifact applies to this request. Bundles
+	 * for hosts with domain specific skin attributes are never taken
+	 * from the artifact since it was generated without them. Neither are
+	 * bundles whose input files have been changed since the build, also
+	 * not after a flush or a restart.
+	 */
+	protected SkinBundle getPrecompiledBundle(HttpServletRequest req, String cacheId, String bundleKey,
+											  String footprintKey, String serverName, String type)
+			throws IOException {
+		if (precompiled == null || !precompiled.getContextPath().equals(req.getContextPath()) ||
+			!domainInfos.get(serverName).isEmpty() || staleBundles.contains(cacheId)) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		if (!precompiled.isCurrent(footprintKey)) {
+			return null;
+		}
+		SkinBundle bundle = precompiled.getBundle(bundleKey, type, encoders);
+		if (bundle != null) {
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: using precompiled buffer");
+			// NOTE: Watched like a generated bundle so that it is evicted
+			// NOTE: when one of its input files changes.
+			SkinDependencies deps = precompiled.getDependencies(footprintKey);
+			bundle.setDependencies(deps);
+			// NOTE: Not written to the disk cache; the artifact is on disk.
+			memoryCache.put(cacheId, bundle);
+			if (watcher != null) {
+				watcher.register(cacheId, deps.getFiles(), start);
+			}
+		}
+		return bundle;
+	}
 
-		int slash = uri.lastIndexOf('/');
-		if (slash != -1) {
-			filenames = uri.substring(slash + 1);
+	/**
+	 * Generates the bundle for the given cache id and stores it in the
+	 * cache. Concurrent requests for the same cache id are coalesced:
+	 * only the first one generates the bundle and the others wait for
+	 * and share its result. This prevents every browser that requests
+	 * a skin resource right after a flush from generating it again.
+	 * <p/>
+	 * Until the footprint of the bundle is known, the cache id still has
+	 * all of the browser's macros, so browsers that will end up sharing
+	 * the bundle have different cache ids. Those requests are coalesced
+	 * on the footprint key instead: the others wait for the first one
+	 * and then use (or generate) the bundle under the cache id with only
+	 * the referenced macros.
+	 */
+	protected SkinBundle generateCachedBundle(final HttpServletRequest req, final HttpServletResponse resp,
+											  final String uri, final String skin,
+											  final String cacheId, final String footprintKey,
+											  final Map<String, String> macros,
+											  final String type, final String client, final Locale locale,
+											  final String templates, final String cacheBusterVersion)
+			throws IOException {
+		FutureTask<SkinBundle> task = new FutureTask<SkinBundle>(new Callable<SkinBundle>() {
+			@Override
+			public SkinBundle call() throws Exception {
+				// NOTE: Another request may have finished generating this
+				// NOTE: bundle between our cache miss and now.
+				SkinBundle bundle = getCachedBundle(cacheId, type);
+				if (bundle != null) {
+					return bundle;
+				}
+				long start = System.currentTimeMillis();
+				Set<File> inputs = new LinkedHashSet<File>();
+				stats.generationStarted();
+				try {
+					bundle = generateBundle(req, resp, uri, skin, cacheId, macros, type, client, locale, templates, cacheBusterVersion, false, inputs);
+				}
+				finally {
+					stats.generationFinished();
+				}
+				// NOTE: The bundle only depends on the macros its files reference.
+				Set<String> footprint = getMacroReferences(inputs);
+				Map<String,String> footprintMacros = getMacros(macros, footprint);
+				String serverName = getServerName(req);
+				bundle.setDependencies(new SkinDependencies(inputs, footprintMacros, domainInfos.get(serverName)));
+				// NOTE: The bundle was encoded while it was written so that no
+				// NOTE: client ever has to wait for the encoding of a cached
+				// NOTE: bundle.
+				Map<String,String> sizes = new HashMap<String,String>();
+				for (SkinEncoder encoder : encoders) {
+					sizes.put(BP_SIZE + encoder.getName(), String.valueOf(bundle.getLength(encoder)));
+				}
+				bundle.putProperties(sizes);
+				checkBudget(cacheId, bundle);
+				putCachedBundle(cacheId, bundle);
+				// NOTE: Now that the footprint is known, later requests use
+				// NOTE: the cache id with only the referenced macros. Store
+				// NOTE: the bundle under that id, too, so that the next
+				// NOTE: request doesn't generate it again.
+				String footprintCacheId = serverName + ":" + getBundleKey(uri, type, client, skin,
+					templates, getMacroNames(footprintMacros.keySet()), cacheBusterVersion, locale);
+				boolean reduced = !footprintCacheId.equals(cacheId);
+				if (reduced) {
+					putCachedBundle(footprintCacheId, bundle);
+				}
+				// NOTE: Published after the bundle is stored so that a request
+				// NOTE: that uses the footprint finds it.
+				footprints.put(footprintKey, footprint);
+				if (watcher != null) {
+					watcher.register(cacheId, inputs, start);
+					if (reduced) {
+						watcher.register(footprintCacheId, inputs, start);
+					}
+					watcher.register(footprintKey, inputs, start);
+				}
+				return bundle;
+			}
+		});
+		if (footprints.get(footprintKey) == null) {
+			// NOTE: Prefixed so that it can't be mistaken for a cache id.
+			String pendingKey = "footprint:" + footprintKey;
+			FutureTask<SkinBundle> pending = generating.putIfAbsent(pendingKey, task);
+			if (pending == null) {
+				try {
+					task.run();
+				}
+				finally {
+					generating.remove(pendingKey, task);
+				}
+				return getGenerated(task, cacheId);
+			}
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: waiting for pending footprint");
+			getGenerated(pending, footprintKey);
+			Set<String> footprint = footprints.get(footprintKey);
+			if (footprint != null) {
+				Map<String,String> footprintMacros = getMacros(macros, footprint);
+				String footprintCacheId = getServerName(req) + ":" + getBundleKey(uri, type, client, skin,
+					templates, getMacroNames(footprintMacros.keySet()), cacheBusterVersion, locale);
+				return generateCachedBundle(req, resp, uri, skin, footprintCacheId, footprintKey, footprintMacros,
+					type, client, locale, templates, cacheBusterVersion);
+			}
+			// NOTE: The footprint was flushed in the meantime.
+		}
+		FutureTask<SkinBundle> pending = generating.putIfAbsent(cacheId, task);
+		if (pending == null) {
+			try {
+				task.run();
+			}
+			finally {
+				generating.remove(cacheId, task);
+			}
+			pending = task;
 		}
+		else {
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: waiting for pending buffer");
+		}
+		return getGenerated(pending, cacheId);
+	}
 
-		int dot = filenames.lastIndexOf('.');
-		if (dot != -1) {
-			ext = filenames.substring(dot);
-			filenames = filenames.substring(0, dot);
+	/** Waits for the generation of the bundle and returns it. */
+	private static SkinBundle getGenerated(FutureTask<SkinBundle> task, String cacheId) throws IOException {
+		try {
+			return task.get();
 		}
-        if (type.equals(T_APPCACHE)) {
-            ext = ".css";
-        }
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while generating " + cacheId);
+		}
+		catch (ExecutionException e) {
+			throw toIOException(e);
+		}
+	}
 
-		ServletContext context = getServletContext();
+	protected SkinBundle generateBundle(HttpServletRequest req, HttpServletResponse resp,
+										String uri, String skin,
+										String cacheId, Map<String, String> macros,
+										String type, String client, Locale locale,
+										String templates, String cacheBusterVersion,
+										boolean debug, Collection<File> inputs)
+			throws IOException {
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: generating buffer");
+		long start = System.currentTimeMillis();
+		Map<String,String> properties = new HashMap<String,String>();
+		List<String> fragments = debug ? null : new ArrayList<String>();
+		String buffer = generate(req, resp, uri, skin, cacheId, properties, macros, type, client, locale, templates, cacheBusterVersion,
+				inputs, fragments);
+		properties.put(BP_SIZE_SOURCE, String.valueOf(getByteLength(buffer)));
+		if (!debug) {
+			long minifyStart = System.currentTimeMillis();
+			buffer = minify(type, buffer, fragments);
+			stats.time(type, skin, SkinResourcesStats.PHASE_MINIFY, System.currentTimeMillis() - minifyStart);
+			ZimbraLog.webclient.debug("DEBUG: buffer.length: "+buffer.length());
+		}
+		SkinBundle bundle = createBundle(type, buffer, getLastModified(inputs),
+				debug ? Collections.<SkinEncoder>emptyList() : encoders);
+		properties.put(BP_SIZE_MINIFIED, String.valueOf(bundle.getLength()));
+		bundle.putProperties(properties);
+		stats.time(type, skin, SkinResourcesStats.PHASE_TOTAL, System.currentTimeMillis() - start);
+		return bundle;
+	}
 
-		String rootDirname = context.getRealPath("/");
-		File rootDir = new File(rootDirname);
-		File fileDir = new File(rootDir, type.equals(T_APPCACHE) ? "css" : type);
-		String skinDirname = context.getRealPath("/skins/" + skin);
-		File skinDir = new File(skinDirname);
-		File manifestFile = new File(skinDir, SKIN_MANIFEST);
+	/**
+	 * Generates and minifies a bundle without a request, using the
+	 * default (i.e. no domain specific) skin attributes.
+	 */
+	SkinBundle generateBundle(File rootDir, String uri, String skin,
+							  Map<String, String> macros, String type, String client,
+							  Locale locale, String templates, String appContextPath,
+							  String cacheBusterVersion, Collection<File> inputs)
+			throws IOException {
+		CharArrayWriter cout = new CharArrayWriter(4096 << 2);
+		Map<String,String> substOverrides =
+			getSubstOverrides(appContextPath, cacheBusterVersion, Collections.<String,String>emptyMap());
+		Map<String,String> properties = new HashMap<String,String>();
+		List<String> fragments = new ArrayList<String>();
+		generate(cout, rootDir, uri, skin, properties, macros, type, client, locale, templates, substOverrides,
+				inputs, fragments);
+		long start = System.currentTimeMillis();
+		String source = cout.toString();
+		properties.put(BP_SIZE_SOURCE, String.valueOf(getByteLength(source)));
+		String buffer = minify(type, source, fragments);
+		stats.time(type, skin, SkinResourcesStats.PHASE_MINIFY, System.currentTimeMillis() - start);
+		SkinBundle bundle = createBundle(type, buffer, getLastModified(inputs), encoders);
+		properties.put(BP_SIZE_MINIFIED, String.valueOf(bundle.getLength()));
+		bundle.putProperties(properties);
+		return bundle;
+	}
 
-		String appContextPath = req.getContextPath();
-		if (appContextPath == null) {
-			ZimbraLog.webclient.debug("!!!Did not find context path in request object!");
-			appContextPath = "/zimbra";
+	/**
+	 * Stores the bundle in the in-memory cache and writes it (and all of
+	 * its encoded variants) to the disk cache.
+	 */
+	protected void putCachedBundle(String cacheId, SkinBundle bundle) throws IOException {
+		File file = createCacheFile(cacheId, bundle.getType());
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: buffer file: "+file);
+		bundle.writeContent(null, file);
+		putCacheFile(cacheId, file);
+		for (SkinEncoder encoder : encoders) {
+			if (bundle.hasContent(encoder)) {
+				writeEncodedBundle(cacheId, bundle, encoder);
+			}
 		}
-		// domain overrides
+		// NOTE: The properties are stored next to the content so that
+		// NOTE: they survive a restart (and go away with a flush).
+		Map<String,String> properties = bundle.getProperties();
+		if (!properties.isEmpty()) {
+			String propsCacheId = cacheId + EXT_PROPERTIES;
+			File propsfile = createCacheFile(propsCacheId, bundle.getType() + EXT_PROPERTIES);
+			writeProperties(properties, propsfile);
+			putCacheFile(propsCacheId, propsfile);
+		}
+		SkinDependencies deps = bundle.getDependencies();
+		if (deps != null) {
+			String depsCacheId = cacheId + EXT_DEPENDENCIES;
+			File depsfile = createCacheFile(depsCacheId, bundle.getType() + EXT_DEPENDENCIES);
+			deps.write(depsfile);
+			putCacheFile(depsCacheId, depsfile);
+		}
+		memoryCache.put(cacheId, bundle);
+		staleBundles.remove(cacheId);
+	}
 
-		if (cacheBusterVersion == null) {
-			cacheBusterVersion = "";
+	/**
+	 * Stores a variant that was encoded after the bundle was cached
+	 * (e.g. a bundle loaded from a disk cache without that variant).
+	 */
+	protected void putEncodedBundle(String cacheId, SkinBundle bundle, SkinEncoder encoder) throws IOException {
+		writeEncodedBundle(cacheId, bundle, encoder);
+		// NOTE: re-put so that the cache accounts for the encoded bytes
+		retain(cacheId, bundle);
+	}
+
+	private void writeEncodedBundle(String cacheId, SkinBundle bundle, SkinEncoder encoder) throws IOException {
+		// NOTE: The encoded file is stored under the raw cache id with
+		// NOTE: the encoder's extension appended.
+		String encodedCacheId = cacheId + encoder.getExtension();
+		File encfile = createCacheFile(encodedCacheId, bundle.getType() + encoder.getExtension());
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: buffer file: " + encfile);
+		if (bundle.isMapped() && !bundle.hasContent(encoder)) {
+			bundle.encodeContent(encoder, encfile);
 		}
-		Map<String,String> substOverrides = new HashMap<String,String>();
-		substOverrides.put(Manifest.S_APP_CONTEXT_PATH, appContextPath);
-		substOverrides.put(Manifest.S_JS_VERSION, cacheBusterVersion);
+		else {
+			bundle.writeContent(encoder, encfile);
+		}
+		putCacheFile(encodedCacheId, encfile);
+	}
 
-		try {
-			SoapProvisioning provisioning = new SoapProvisioning();
-			String soapUri =
-				LC.zimbra_admin_service_scheme.value() +
-				LC.zimbra_zmprov_default_soap_server.value() +
-				':' +
-				LC.zimbra_admin_service_port.intValue() +
-				AdminConstants.ADMIN_SERVICE_URI
-			;
-			provisioning.soapSetURI(soapUri);
-			String serverName = getServerName(req);
-			Entry info = provisioning.getDomainInfo(Key.DomainBy.virtualHostname, serverName);
-			if (info == null) {
-				info = provisioning.getConfig();
-			}
-			if (info != null) {
-				// colors
-				substOverrides.put(Manifest.S_SKIN_FOREGROUND_COLOR, info.getAttr(A_SKIN_FOREGROUND_COLOR));
-				substOverrides.put(Manifest.S_SKIN_BACKGROUND_COLOR, info.getAttr(A_SKIN_BACKGROUND_COLOR));
-				substOverrides.put(Manifest.S_SKIN_SECONDARY_COLOR, info.getAttr(A_SKIN_SECONDARY_COLOR));
-				substOverrides.put(Manifest.S_SKIN_SELECTION_COLOR, info.getAttr(A_SKIN_SELECTION_COLOR));
-				// images
-				substOverrides.put(Manifest.S_SKIN_LOGO_LOGIN_BANNER, info.getAttr(A_SKIN_LOGO_LOGIN_BANNER));
-				substOverrides.put(Manifest.S_SKIN_LOGO_APP_BANNER, info.getAttr(A_SKIN_LOGO_APP_BANNER));
-				substOverrides.put(Manifest.S_SKIN_LOGO_URL, info.getAttr(A_SKIN_LOGO_URL));
-				// favicon
-				substOverrides.put(Manifest.S_SKIN_FAVICON, info.getAttr(A_SKIN_FAVICON));
-				// help
-				substOverrides.put(Manifest.S_HELP_ADMIN_URL, info.getAttr(A_HELP_ADMIN_URL));
-				substOverrides.put(Manifest.S_HELP_ADVANCED_URL, info.getAttr(A_HELP_ADVANCED_URL));
-				substOverrides.put(Manifest.S_HELP_DELEGATED_URL, info.getAttr(A_HELP_DELEGATED_URL));
-				substOverrides.put(Manifest.S_HELP_STANDARD_URL, info.getAttr(A_HELP_STANDARD_URL));
-			}
-		}
-		catch (Exception e) {
-			if (ZimbraLog.webclient.isDebugEnabled()) {
-				ZimbraLog.webclient.debug("!!! Unable to get domain config");
-			}
+
+	//
+	// Private methods
+	//
+
+	private long getBudget(String type) {
+		return type.equals(T_CSS) ? cssBudget : type.equals(T_JAVASCRIPT) ? jsBudget : 0;
+	}
+
+	/**
+	 * Logs a warning if the (minified) bundle is larger than the budget
+	 * for its type so that growth of the skin resources, e.g. through
+	 * new templates, gets noticed.
+	 */
+	private void checkBudget(String cacheId, SkinBundle bundle) {
+		long budget = getBudget(bundle.getType());
+		if (budget > 0 && bundle.getLength() > budget) {
+			ZimbraLog.webclient.warn("Skin bundle " + cacheId + " is " + bundle.getLength() +
+				" bytes, over the budget of " + budget + " bytes; largest inputs: " +
+				bundle.getProperty(BP_LARGEST_INPUTS));
 		}
+	}
 
-		// load manifest
-		Manifest manifest = new Manifest(manifestFile, macros, client, substOverrides, requestedLocale);
+	/**
+	 * Creates the bundle for the minified buffer. The buffer is converted
+	 * to UTF-8 once and the bytes are streamed into every encoder as they
+	 * are produced, instead of encoding the finished content again.
+	 */
+	private static SkinBundle createBundle(String type, String buffer, long lastModified,
+										   Collection<SkinEncoder> encoders) throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream(buffer.length());
+		List<OutputStream> outs = new ArrayList<OutputStream>();
+		outs.add(plain);
+		Map<SkinEncoder,ByteArrayOutputStream> encoded = new LinkedHashMap<SkinEncoder,ByteArrayOutputStream>();
+		for (SkinEncoder encoder : encoders) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(buffer.length() / 4);
+			encoded.put(encoder, bos);
+			outs.add(encoder.encode(bos));
+		}
+		Writer out = new OutputStreamWriter(new TeeOutputStream(outs), "UTF-8");
+		out.write(buffer);
+		out.close();
+		SkinBundle bundle = new SkinBundle(type, plain.toByteArray(), lastModified);
+		for (Map.Entry<SkinEncoder,ByteArrayOutputStream> entry : encoded.entrySet()) {
+			bundle.putContent(entry.getKey(), entry.getValue().toByteArray());
+		}
+		return bundle;
+	}
 
-		// process input files
-		StringTokenizer tokenizer = new StringTokenizer(filenames, ",");
-		while (tokenizer.hasMoreTokens()) {
-			String filename = tokenizer.nextToken();
-			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: filename " + filename);
-			String filenameExt = filename + ext;
+	private static int getByteLength(String s) throws IOException {
+		return s.getBytes("UTF-8").length;
+	}
 
-			List<File> files = new LinkedList<File>();
+	/**
+	 * Returns the files of the bundle that contributed the most bytes,
+	 * largest first, in the format of {@link #BP_LARGEST_INPUTS}.
+	 *
+	 * @param texts The preprocessed text of each file.
+	 */
+	private static String getLargestInputs(File rootDir, List<File> files, List<String> texts)
+			throws IOException {
+		List<Map.Entry<File,Integer>> sizes = new ArrayList<Map.Entry<File,Integer>>(files.size());
+		for (int i = 0; i < files.size(); i++) {
+			sizes.add(new AbstractMap.SimpleImmutableEntry<File,Integer>(files.get(i), getByteLength(texts.get(i))));
+		}
+		Collections.sort(sizes, new Comparator<Map.Entry<File,Integer>>() {
+			@Override
+			public int compare(Map.Entry<File,Integer> a, Map.Entry<File,Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		StringBuilder str = new StringBuilder();
+		for (Map.Entry<File,Integer> entry : sizes.subList(0, Math.min(sizes.size(), MAX_LARGEST_INPUTS))) {
+			if (str.length() > 0) {
+				str.append(';');
+			}
+			str.append(entry.getValue()).append(' ').append(rootDir.toURI().relativize(entry.getKey().toURI()).getPath());
+		}
+		return str.toString();
+	}
 
-			if (filename.equals(N_SKIN)) {
-				if (type.equals(T_CSS) || type.equals(T_APPCACHE)) {
-					for (File file : manifest.getFiles(type)) {
-						files.add(file);
-						String cssFilename = file.getName().replaceAll("\\.css$", "");
-						String cssExt = file.getName().replaceAll("^.*\\.", ".");
-						addLocaleFiles(files, requestedLocale, file.getParentFile(), cssFilename, cssExt);
+	/**
+	 * Minifies a CSS or JavaScript bundle by minifying each of its
+	 * preprocessed files separately and concatenating the results, so
+	 * that files that are the same in another variant of the bundle
+	 * don't have to be compressed again. The files that do need to be
+	 * compressed are compressed on the minifier threads. Other types
+	 * are returned as is.
+	 * <p>
+	 * The whole bundle is minified instead if the files can't be
+	 * minified separately without changing what the bundle means: if a
+	 * file doesn't parse on its own (e.g. a statement that continues in
+	 * the next file), if the next file could continue the last statement
+	 * of a script that isn't terminated, or if a style sheet ends inside
+	 * a comment. With {@link #setCheckMinify}, the concatenated result is
+	 * compared to the whole bundle minified and the latter is used if
+	 * they differ.
+	 *
+	 * @param buffer The whole preprocessed bundle.
+	 * @param fragments The preprocessed files of the bundle, in order.
+	 */
+	String minify(final String type, String buffer, List<String> fragments) throws IOException {
+		if (!type.equals(T_CSS) && !type.equals(T_JAVASCRIPT)) {
+			return buffer;
+		}
+		long start = System.currentTimeMillis();
+		// NOTE: Null where the fragment is still being minified.
+		List<String> results = new ArrayList<String>(fragments.size());
+		List<Future<String>> pending = new ArrayList<Future<String>>();
+		try {
+			for (final String fragment : fragments) {
+				if (type.equals(T_CSS) && fragment.lastIndexOf("/*") > fragment.lastIndexOf("*/")) {
+					return minifyWhole(type, buffer);
+				}
+				final String key = type + ":" + SkinBundle.computeHash(fragment.getBytes("UTF-8"));
+				String minified = minifiedFragments.get(key);
+				results.add(minified);
+				if (minified != null) {
+					minifiedFragmentHits.incrementAndGet();
+					continue;
+				}
+				minifiedFragmentMisses.incrementAndGet();
+				FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						String minified = minify(type, fragment, FRAGMENT_ERROR_REPORTER);
+						minifiedFragments.put(key, minified);
+						return minified;
 					}
-
-					File file = new File(skinDir, IMAGE_CSS);
-					files.add(file);
-					String cssFilename = file.getName().replaceAll("\\.css$", "");
-					String cssExt = file.getName().replaceAll("^.*\\.", ".");
-					addLocaleFiles(files, requestedLocale, file.getParentFile(), cssFilename, cssExt);
+				});
+				try {
+					minifier.execute(task);
 				}
-				else if (type.equals(T_JAVASCRIPT)) {
-					// decide whether to include templates
-					boolean only = templatesParam.equals(V_ONLY);
-					boolean split = templatesParam.equals(V_SPLIT);
-					boolean include = only || split || templatesParam.equals(V_TRUE);
-
-					// ignore main skin files if only want templates
-					if (!only) {
-						for (File file : manifest.getFiles(type)) {
-							files.add(file);
-							// TODO: Not sure if we want to allow different skin JS files
-							//	   (aside from templates) based on locale.
-//							String jsFilename = file.getName().replaceAll("\\.js$", "");
-//							String jsExt = file.getName().replaceAll("^.*\\.", ".");
-//							addLocaleFiles(files, requestedLocale, file.getParentFile(), jsFilename, jsExt);
+				catch (RejectedExecutionException e) {
+					minifyRejections.incrementAndGet();
+					throw new OverloadedException("too many skin files waiting to be minified");
+				}
+				pending.add(task);
+			}
+			StringBuilder str = new StringBuilder(buffer.length() / 2);
+			Iterator<Future<String>> iter = pending.iterator();
+			String last = null;
+			for (String minified : results) {
+				if (minified == null) {
+					try {
+						minified = iter.next().get();
+					}
+					catch (ExecutionException e) {
+						if (e.getCause() instanceof EvaluatorException) {
+							return minifyWhole(type, buffer);
 						}
+						throw e;
+					}
+				}
+				if (minified.length() == 0) {
+					continue;
+				}
+				if (last != null && type.equals(T_JAVASCRIPT) && !last.endsWith(";")) {
+					// NOTE: In the whole bundle, the line break at the end of
+					// NOTE: the file ends the statement unless the next file
+					// NOTE: can continue it.
+					if (STATEMENT_CONTINUATIONS.indexOf(minified.charAt(0)) != -1) {
+						return minifyWhole(type, buffer);
 					}
+					str.append(';');
+				}
+				if (last != null) {
+					str.append('\n');
+				}
+				str.append(minified);
+				last = minified;
+			}
+			String minified = str.toString();
+			if (checkMinify) {
+				String whole = minify(type, buffer, MINIFY_ERROR_REPORTER);
+				if (!whole.equals(minified)) {
+					minifyMismatches.incrementAndGet();
+					ZimbraLog.webclient.warn("Minified skin files differ from the minified " + type + " bundle; using the latter");
+					return whole;
+				}
+			}
+			return minified;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while minifying");
+		}
+		catch (ExecutionException e) {
+			throw toIOException(e);
+		}
+		finally {
+			for (Future<String> task : pending) {
+				task.cancel(true);
+			}
+			long time = System.currentTimeMillis() - start;
+			minifiedBundles.incrementAndGet();
+			minifyTime.addAndGet(time);
+			long max;
+			while (time > (max = maxMinifyTime.get()) && !maxMinifyTime.compareAndSet(max, time)) {
+				// retry
+			}
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: minify time: " + time + "ms");
+		}
+	}
 
-					// include templates, unless request to split and too big
-					if (include) {
-						List<File> templates = manifest.templateFiles();
-						boolean included = includeTemplates(templates, split);
-						if (included) {
-							for (File file : templates) {
-								// TODO: optimize
-								files.add(new File(file.getParentFile(), file.getName() + ".js"));
-								String templateFilename = file.getName().replaceAll("\\.template$", "");
-								String templateExt = ".template.js";
-								addLocaleFiles(files, requestedLocale, file.getParentFile(), templateFilename, templateExt);
-							}
-						}
-						this.included.put(cacheId, included);
+	/** Minifies the whole bundle because its files can't be minified separately. */
+	private String minifyWhole(String type, String buffer) throws IOException {
+		minifyFallbacks.incrementAndGet();
+		return minify(type, buffer, MINIFY_ERROR_REPORTER);
+	}
+
+	/**
+	 * Compares the separately minified files of every bundle with the
+	 * whole bundle minified (see {@link #minify(String, String, List)}).
+	 * Used when the bundles are precompiled.
+	 */
+	void setCheckMinify(boolean checkMinify) {
+		this.checkMinify = checkMinify;
+	}
+
+	/** Returns the number of bundles whose separately minified files differed. */
+	long getMinifyMismatches() {
+		return minifyMismatches.get();
+	}
+
+	/**
+	 * Returns the number of files waiting to be minified and the number
+	 * and duration of bundle minifications.
+	 */
+	String getMinifierStats() {
+		long bundles = minifiedBundles.get();
+		long avg = bundles > 0 ? minifyTime.get() / bundles : 0;
+		return "queued=" + minifier.getQueue().size() + ", active=" + minifier.getActiveCount() +
+			", threads=" + minifier.getMaximumPoolSize() + ", bundles=" + bundles +
+			", avgTime=" + avg + "ms, maxTime=" + maxMinifyTime.get() + "ms" +
+			", fragmentHits=" + minifiedFragmentHits.get() + ", fragmentMisses=" + minifiedFragmentMisses.get() +
+			", wholeBundles=" + minifyFallbacks.get() + ", mismatches=" + minifyMismatches.get() +
+			", rejected=" + minifyRejections.get();
+	}
+
+	private static String minify(String type, String buffer, ErrorReporter reporter) throws IOException {
+		if (type.equals(T_CSS)) {
+			CssCompressor compressor = new CssCompressor(new StringReader(buffer));
+			StringWriter out = new StringWriter();
+			compressor.compress(out, 0);
+			return out.toString();
+		}
+		if (type.equals(T_JAVASCRIPT)) {
+			JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(buffer), reporter);
+			StringWriter out = new StringWriter();
+			compressor.compress(out, 0, true, false, false, false);
+			return out.toString();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Evicts the bundles (and footprints and appcache parts) with the
+	 * given keys because their input files changed.
+	 */
+	private void evict(Set<String> keys) {
+		for (String key : keys) {
+			// NOTE: The files may have been touched without changing.
+			SkinBundle bundle = getRetainedBundle(key);
+			SkinDependencies deps = bundle != null ? bundle.getDependencies() : null;
+			if (deps != null && watcher != null) {
+				try {
+					long start = System.currentTimeMillis();
+					if (!deps.isStale()) {
+						watcher.register(key, deps.getFiles(), start);
+						continue;
 					}
 				}
-				else {
-					files.addAll(manifest.getFiles(type));
-					// TODO: Add locale variants? Probably not...
+				catch (IOException e) {
+					// NOTE: Evict to be on the safe side.
 				}
-			} else {
-				File dir = fileDir;
-				File file = new File(dir, filenameExt);
-				if (ZimbraLog.webclient.isDebugEnabled())
-					ZimbraLog.webclient.debug("DEBUG: file " + file.getAbsolutePath());
-				if (!file.exists() && (type.equals(T_CSS) || type.equals(T_APPCACHE)) && filename.equals(N_IMAGES)) {
-					file = new File(rootDir, IMAGE_CSS);
-					dir = file.getParentFile();
-					if (ZimbraLog.webclient.isDebugEnabled())
-						ZimbraLog.webclient.debug("DEBUG: !file.exists() " + file.getAbsolutePath());
+			}
+			memoryCache.remove(key);
+			mappedBundles.remove(key);
+			validators.remove(key);
+			footprints.remove(key);
+			appcacheParts.remove(key);
+			unregister(key);
+			if (getCacheFile(key) != null) {
+				staleBundles.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Creates the memory cache. The watcher forgets the bundles that are
+	 * evicted from it; if one of them is loaded from the disk cache
+	 * again, its inputs are checked then.
+	 */
+	private SkinBundleCache newMemoryCache(long maxWeight) {
+		return new SkinBundleCache(maxWeight) {
+			@Override
+			protected void evicted(String cacheId) {
+				unregister(cacheId);
+			}
+		};
+	}
+
+	/** Returns the bundle from the memory cache or the mapped bundles. */
+	private SkinBundle getRetainedBundle(String cacheId) {
+		SkinBundle bundle = memoryCache.get(cacheId);
+		return bundle != null ? bundle : mappedBundles.get(cacheId);
+	}
+
+	/**
+	 * Keeps the bundle in the memory cache or, if that doesn't take it
+	 * and the bundle is mapped, with the mapped bundles.
+	 */
+	private void retain(String cacheId, SkinBundle bundle) {
+		if (memoryCache.accepts(bundle.getWeight())) {
+			mappedBundles.remove(cacheId);
+			memoryCache.put(cacheId, bundle);
+		}
+		else if (bundle.isMapped()) {
+			mappedBundles.put(cacheId, bundle);
+		}
+	}
+
+	/** Tells the watcher to forget the (footprint, appcache part or bundle) key. */
+	private void unregister(String key) {
+		if (watcher != null) {
+			watcher.unregister(key);
+		}
+	}
+
+	private static ThreadPoolExecutor newExecutor(final String name, int threads, int queueSize,
+												  RejectedExecutionHandler rejectedHandler) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
 				}
-				files.add(file);
-				if (type.equals(T_CSS) || type.equals(T_APPCACHE) || type.equals(T_JAVASCRIPT)) {
-					addLocaleFiles(files, requestedLocale, dir, filename, ext);
+			}, rejectedHandler);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static Map<String,String> readProperties(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+		Map<String,String> properties = new HashMap<String,String>();
+		for (String name : props.stringPropertyNames()) {
+			properties.put(name, props.getProperty(name));
+		}
+		return properties;
+	}
+
+	private static void writeProperties(Map<String,String> properties, File file) throws IOException {
+		Properties props = new Properties();
+		props.putAll(properties);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			props.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private Manifest getManifest(File manifestFile, Map<String, String> macros, String client,
+								 Map<String,String> substOverrides, Locale locale)
+			throws IOException {
+		String key = manifestFile.getAbsolutePath() + ":" + client + ":" + getMacroNames(macros.keySet()) +
+			":" + locale + ":" + new TreeMap<String,String>(substOverrides);
+		Manifest manifest = manifests.get(key);
+		if (manifest == null || manifest.isStale()) {
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: loading manifest " + key);
+			manifest = new Manifest(manifestFile, macros, client, substOverrides, locale);
+			manifest.setInlineImages(inlineImageMaxSize > 0);
+			manifests.put(key, manifest);
+		}
+		return manifest;
+	}
+
+	private Locale getLocale(HttpServletRequest req) {
+		String language = null, country = null, variant = null;
+		String locale = req.getParameter(P_LOCALE);
+		if (locale != null) {
+			StringTokenizer tokenizer = new StringTokenizer(locale, "_");
+			language = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+			country = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+			variant = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+		}
+		else {
+			language = req.getParameter(P_LANGUAGE);
+			country = req.getParameter(P_COUNTRY);
+			variant = req.getParameter(P_VARIANT);
+		}
+		if (language != null) {
+			if (country != null) {
+				if (variant != null) {
+					return new Locale(language, country, variant);
 				}
+				return new Locale(language, country);
 			}
+			return new Locale(language);
+		}
+		return req.getLocale();
+	} // getLocale(HttpServletRequest):Locale
+
+	private String generate(HttpServletRequest req, HttpServletResponse resp,
+							String uri, String skin, String cacheId,
+							Map<String,String> properties, Map<String, String> macros,
+							String type, String client, Locale requestedLocale,
+							String templatesParam, String cacheBusterVersion,
+							Collection<File> inputs, List<String> fragments)
+			throws IOException {
+		String filenames = getFilenames(uri);
 
-			for (File file : files) {
-				if (!file.exists()) {
-					out.print(commentStart);
-					out.print("Error: file doesn't exist - " + URLEncoder.encode(file.getAbsolutePath().replaceAll("^.*/webapps/", ""), "UTF-8"));
-					out.println(commentEnd);
-					out.println();
-					continue;
-				}
-				if (ZimbraLog.webclient.isDebugEnabled())
-					ZimbraLog.webclient.debug("DEBUG: preprocess " + file.getAbsolutePath());
-				preprocess(file, cout, macros, manifest,
-						commentStart, commentContinue, commentEnd, requestedLocale);
-			}
+		ServletContext context = getServletContext();
+		File rootDir = new File(context.getRealPath("/"));
+
+		String appContextPath = req.getContextPath();
+		if (appContextPath == null) {
+			ZimbraLog.webclient.debug("!!!Did not find context path in request object!");
+			appContextPath = "/zimbra";
+		}
+		if (cacheBusterVersion == null) {
+			cacheBusterVersion = "";
 		}
 
+		// domain overrides
+		String serverName = getServerName(req);
+		long start = System.currentTimeMillis();
+		Map<String,String> info = domainInfos.get(serverName);
+		stats.time(type, skin, SkinResourcesStats.PHASE_DOMAIN, System.currentTimeMillis() - start);
+
+		Map<String,String> substOverrides = getSubstOverrides(appContextPath, cacheBusterVersion, info);
+
 		// return data
-		out.flush();
 		if (type.equals(T_APPCACHE)) {
             String debugStr = req.getParameter(P_DEBUG);
 			String debug = "";
@@ -770,27 +1948,8 @@ public class SkinResources
 			sb.append("\n").append(appContextPath).append("/img/large/ImgPerson_48.png?v=").append(cacheBusterVersion);
 			sb.append("\n").append(appContextPath).append("/skins/_base/logos/LoginBanner.png?v=").append(cacheBusterVersion); //TODO remove this hardcoded image.
 			sb.append("\n\n#style sheet images\n");
-			//find all the css rules with a url in it
-			Set<String> imgSet = new LinkedHashSet();
-			for(String s: cout.toString().split("\\r?\\n")) {
-				//run the regex on each line
-				Matcher m = RE_CSSURL.matcher(s.trim());
-				if (m.find()) {
-					imgSet.add(m.group(1)); //use linked hash set to avoid duplicate images
-				}
-			}
-            File imgFile = null;
-            for (String fileName : imgSet){
-                String relativePath = fileName.startsWith("/zimbra") ? fileName = fileName.substring(7) : fileName;
-				String realPath = context.getRealPath(relativePath);
-				if (realPath != null) {
-					imgFile = new File(realPath);
-					if (!imgFile.exists()) {
-						continue;
-					}
-					sb.append("\n").append(appContextPath).append(fileName).append("?v=").append(cacheBusterVersion);
-				}
-			}
+			sb.append(getAppcacheImages(cacheId, rootDir, uri, skin, macros, client, requestedLocale,
+					templatesParam, substOverrides, appContextPath, cacheBusterVersion));
 			sb.append("\n\n#style sheets\n");
 			//create the url of the css files
             sb.append("\n").append(appContextPath).append("/css/").append(filenames).append(".css?v=").append(cacheBusterVersion)
@@ -861,16 +2020,7 @@ public class SkinResources
 			sb.append("\n\n#javascript files\n");
 
 			if (debugStr != null && (debugStr.equals(Boolean.TRUE.toString()) || debugStr.equals("1"))) {
-				cout = new CharArrayWriter(4096 << 2); // 16K buffer to start
-				String[] allPackages = ("Startup1_1,Startup1_2,Boot,Startup2,CalendarCore,Calendar,CalendarAppt," +
-                        "ContactsCore,Contacts,MailCore,Mail,BriefcaseCore,Briefcase,PreferencesCore,Preferences," +
-						"TasksCore,Tasks,Extras,Share,Zimlet,ZimletApp,Alert,ImportExport,Voicemail,TinyMCE").split(",");
-				for(String name: allPackages) {
-					File file = new File(rootDir,"js/" + name + ".appcache");
-					preprocess(file, cout, null, null, null, null, null, requestedLocale);
-				}
-				sb.append("\n");
-				sb.append((cout.toString().replaceAll("<%=contextPath%>",appContextPath)).replaceAll("<%=vers%>", cacheBusterVersion));
+				sb.append(getAppcacheScripts(rootDir, requestedLocale, appContextPath, cacheBusterVersion));
 				//TODO find a way to get this template files list
 				sb.append("\n").append(appContextPath).append("/templates/abook/Contacts.template.js?v=").append(cacheBusterVersion);
 				sb.append("\n").append(appContextPath).append("/templates/calendar/Appointment.template.js?v=").append(cacheBusterVersion);
@@ -933,7 +2083,487 @@ public class SkinResources
 		
 			return sb.toString();
 		}
-		return cout.toString();
+
+		// create data buffers
+		CharArrayWriter cout = new CharArrayWriter(4096 << 2); // 16K buffer to start
+		generate(cout, rootDir, uri, skin, properties, macros, type, client, requestedLocale,
+				templatesParam, substOverrides, inputs, fragments);
+		return cout.toString();
+	}
+
+	/**
+	 * Returns the images referenced by the style sheets of the appcache
+	 * manifest, generating the style sheets only if they haven't been
+	 * generated for the same cache id before.
+	 */
+	private String getAppcacheImages(String cacheId, File rootDir, String uri, String skin,
+									 Map<String, String> macros, String client, Locale requestedLocale,
+									 String templatesParam, Map<String,String> substOverrides,
+									 String appContextPath, String cacheBusterVersion)
+			throws IOException {
+		String images = appcacheParts.get(cacheId);
+		if (images != null) {
+			return images;
+		}
+		long start = System.currentTimeMillis();
+		Set<File> inputs = new LinkedHashSet<File>();
+		CharArrayWriter cout = new CharArrayWriter(4096 << 2); // 16K buffer to start
+		generate(cout, rootDir, uri, skin, null, macros, T_APPCACHE, client, requestedLocale,
+				templatesParam, substOverrides, inputs, null);
+
+		ServletContext context = getServletContext();
+		StringBuilder sb = new StringBuilder();
+		//find all the css rules with a url in it
+		Set<String> imgSet = new LinkedHashSet();
+		for(String s: cout.toString().split("\\r?\\n")) {
+			//run the regex on each line
+			Matcher m = RE_CSSURL.matcher(s.trim());
+			if (m.find()) {
+				imgSet.add(m.group(1)); //use linked hash set to avoid duplicate images
+			}
+		}
+        File imgFile = null;
+        for (String fileName : imgSet){
+            String relativePath = fileName.startsWith("/zimbra") ? fileName = fileName.substring(7) : fileName;
+			String realPath = context.getRealPath(relativePath);
+			if (realPath != null) {
+				imgFile = new File(realPath);
+				if (!imgFile.exists()) {
+					continue;
+				}
+				sb.append("\n").append(appContextPath).append(fileName).append("?v=").append(cacheBusterVersion);
+			}
+		}
+		images = sb.toString();
+		appcacheParts.put(cacheId, images);
+		if (watcher != null) {
+			watcher.register(cacheId, inputs, start);
+		}
+		return images;
+	}
+
+	/**
+	 * Returns the scripts of the application packages listed in the
+	 * appcache manifest of debug requests.
+	 */
+	private String getAppcacheScripts(File rootDir, Locale requestedLocale,
+									  String appContextPath, String cacheBusterVersion)
+			throws IOException {
+		String key = "scripts:" + appContextPath + ":" + cacheBusterVersion + ":" + requestedLocale;
+		String scripts = appcacheParts.get(key);
+		if (scripts != null) {
+			return scripts;
+		}
+		StringBuilder sb = new StringBuilder();
+		CharArrayWriter cout = new CharArrayWriter(4096 << 2); // 16K buffer to start
+		String[] allPackages = ("Startup1_1,Startup1_2,Boot,Startup2,CalendarCore,Calendar,CalendarAppt," +
+                "ContactsCore,Contacts,MailCore,Mail,BriefcaseCore,Briefcase,PreferencesCore,Preferences," +
+				"TasksCore,Tasks,Extras,Share,Zimlet,ZimletApp,Alert,ImportExport,Voicemail,TinyMCE").split(",");
+		for(String name: allPackages) {
+			File file = new File(rootDir,"js/" + name + ".appcache");
+			preprocess(file, cout, null, null, null, null, null, requestedLocale);
+		}
+		sb.append("\n");
+		sb.append((cout.toString().replaceAll("<%=contextPath%>",appContextPath)).replaceAll("<%=vers%>", cacheBusterVersion));
+		scripts = sb.toString();
+		appcacheParts.put(key, scripts);
+		return scripts;
+	}
+
+	/**
+	 * Aggregates and preprocesses the files of the bundle named by the
+	 * URI. This does not depend on the request so that bundles can also
+	 * be generated ahead of time (see {@link SkinPrecompiler}). Facts
+	 * about the bundle (see <code>BP_*</code>) are added to the given
+	 * properties, if not null. The preprocessed text of each file is
+	 * also added to the fragments, if not null, so that the files can
+	 * be minified separately.
+	 */
+	void generate(CharArrayWriter cout, File rootDir, String uri, String skin,
+				  Map<String,String> properties, Map<String, String> macros,
+				  String type, String client, Locale requestedLocale,
+				  String templatesParam, Map<String,String> substOverrides,
+				  Collection<File> inputs, List<String> fragments)
+			throws IOException {
+		String commentStart = "/* ";
+		String commentContinue = " * ";
+		String commentEnd = " */";
+		if (type.equals(T_HTML)) {
+			commentStart = "<!-- ";
+			commentContinue = " - ";
+			commentEnd = " -->";
+		}
+
+		PrintWriter out = new PrintWriter(cout);
+
+		// get data
+		out.println(commentStart);
+		for (String mname : macros.keySet()) {
+			String mvalue = macros.get(mname);
+			out.print(commentContinue);
+			out.println("#define " + mname + " " + mvalue);
+		}
+		out.println(commentEnd);
+		out.println();
+
+		String filenames = getFilenames(uri);
+		String ext = "." + type;
+
+		int dot = uri.lastIndexOf('.');
+		if (dot != -1 && dot > uri.lastIndexOf('/')) {
+			ext = uri.substring(dot);
+		}
+        if (type.equals(T_APPCACHE)) {
+            ext = ".css";
+        }
+
+		File fileDir = new File(rootDir, type.equals(T_APPCACHE) ? "css" : type);
+		File skinDir = new File(rootDir, "skins/" + skin);
+		File manifestFile = new File(skinDir, SKIN_MANIFEST);
+
+		// load manifest
+		long start = System.currentTimeMillis();
+		Manifest manifest = getManifest(manifestFile, macros, client, substOverrides, requestedLocale);
+		stats.time(type, skin, SkinResourcesStats.PHASE_MANIFEST, System.currentTimeMillis() - start);
+		if (inputs != null) {
+			inputs.addAll(manifest.getSources());
+		}
+
+		// process input files
+		List<File> bundleFiles = new ArrayList<File>();
+		StringTokenizer tokenizer = new StringTokenizer(filenames, ",");
+		while (tokenizer.hasMoreTokens()) {
+			String filename = tokenizer.nextToken();
+			if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: filename " + filename);
+			String filenameExt = filename + ext;
+
+			List<File> files = new LinkedList<File>();
+
+			if (filename.equals(N_SKIN)) {
+				if (type.equals(T_CSS) || type.equals(T_APPCACHE)) {
+					for (File file : manifest.getFiles(type)) {
+						files.add(file);
+						String cssFilename = file.getName().replaceAll("\\.css$", "");
+						String cssExt = file.getName().replaceAll("^.*\\.", ".");
+						addLocaleFiles(files, requestedLocale, file.getParentFile(), cssFilename, cssExt);
+					}
+
+					File file = new File(skinDir, IMAGE_CSS);
+					files.add(file);
+					String cssFilename = file.getName().replaceAll("\\.css$", "");
+					String cssExt = file.getName().replaceAll("^.*\\.", ".");
+					addLocaleFiles(files, requestedLocale, file.getParentFile(), cssFilename, cssExt);
+				}
+				else if (type.equals(T_JAVASCRIPT)) {
+					// decide whether to include templates
+					boolean only = templatesParam.equals(V_ONLY);
+					boolean split = templatesParam.equals(V_SPLIT);
+					boolean include = only || split || templatesParam.equals(V_TRUE);
+
+					// ignore main skin files if only want templates
+					if (!only) {
+						for (File file : manifest.getFiles(type)) {
+							files.add(file);
+							// TODO: Not sure if we want to allow different skin JS files
+							//	   (aside from templates) based on locale.
+//							String jsFilename = file.getName().replaceAll("\\.js$", "");
+//							String jsExt = file.getName().replaceAll("^.*\\.", ".");
+//							addLocaleFiles(files, requestedLocale, file.getParentFile(), jsFilename, jsExt);
+						}
+					}
+
+					// include templates, unless request to split and too big
+					if (include) {
+						List<File> templates = manifest.templateFiles();
+						boolean included = includeTemplates(templates, split);
+						if (included) {
+							for (File file : templates) {
+								// TODO: optimize
+								files.add(new File(file.getParentFile(), file.getName() + ".js"));
+								String templateFilename = file.getName().replaceAll("\\.template$", "");
+								String templateExt = ".template.js";
+								addLocaleFiles(files, requestedLocale, file.getParentFile(), templateFilename, templateExt);
+							}
+						}
+						if (properties != null) {
+							properties.put(BP_TEMPLATES_INCLUDED, String.valueOf(included));
+						}
+					}
+				}
+				else {
+					files.addAll(manifest.getFiles(type));
+					// TODO: Add locale variants? Probably not...
+				}
+			} else {
+				File dir = fileDir;
+				File file = new File(dir, filenameExt);
+				if (ZimbraLog.webclient.isDebugEnabled())
+					ZimbraLog.webclient.debug("DEBUG: file " + file.getAbsolutePath());
+				if (!file.exists() && (type.equals(T_CSS) || type.equals(T_APPCACHE)) && filename.equals(N_IMAGES)) {
+					file = new File(rootDir, IMAGE_CSS);
+					dir = file.getParentFile();
+					if (ZimbraLog.webclient.isDebugEnabled())
+						ZimbraLog.webclient.debug("DEBUG: !file.exists() " + file.getAbsolutePath());
+				}
+				files.add(file);
+				if (type.equals(T_CSS) || type.equals(T_APPCACHE) || type.equals(T_JAVASCRIPT)) {
+					addLocaleFiles(files, requestedLocale, dir, filename, ext);
+				}
+			}
+
+			bundleFiles.addAll(files);
+		}
+
+		start = System.currentTimeMillis();
+		List<String> texts = preprocess(bundleFiles, macros, manifest,
+				commentStart, commentContinue, commentEnd, requestedLocale, inputs);
+		if (inlineImageMaxSize > 0) {
+			texts = inlineImages(texts, type.equals(T_CSS), rootDir,
+					substOverrides.get(Manifest.S_APP_CONTEXT_PATH), inputs);
+		}
+		for (String text : texts) {
+			out.print(text);
+			if (fragments != null) {
+				fragments.add(text);
+			}
+		}
+		out.flush();
+		if (properties != null) {
+			properties.put(BP_LARGEST_INPUTS, getLargestInputs(rootDir, bundleFiles, texts));
+		}
+		stats.time(type, skin, SkinResourcesStats.PHASE_PREPROCESS, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Preprocesses the files (and their locale variants) of a bundle and
+	 * returns the text of each, in order. When there is more than one
+	 * file, the files are preprocessed concurrently on the preprocessor
+	 * threads so that the output is the same as if the files were
+	 * preprocessed one after another.
+	 */
+	private List<String> preprocess(List<File> files,
+							final Map<String, String> macros, final Manifest manifest,
+							final String commentStart, final String commentContinue, final String commentEnd,
+							final Locale requestedLocale, Collection<File> inputs)
+			throws IOException {
+		List<String> texts = new ArrayList<String>(files.size());
+		List<Future<Fragment>> fragments = new ArrayList<Future<Fragment>>(files.size());
+		try {
+			for (final File file : files) {
+				Callable<Fragment> callable = new Callable<Fragment>() {
+					@Override
+					public Fragment call() throws Exception {
+						CharArrayWriter writer = new CharArrayWriter(Math.max(32, (int)file.length()));
+						PrintWriter fout = new PrintWriter(writer);
+						List<File> finputs = new LinkedList<File>();
+						if (!file.exists()) {
+							fout.print(commentStart);
+							fout.print("Error: file doesn't exist - " + URLEncoder.encode(file.getAbsolutePath().replaceAll("^.*/webapps/", ""), "UTF-8"));
+							fout.println(commentEnd);
+							fout.println();
+						}
+						else {
+							if (ZimbraLog.webclient.isDebugEnabled())
+								ZimbraLog.webclient.debug("DEBUG: preprocess " + file.getAbsolutePath());
+							preprocess(file, writer, macros, manifest,
+									commentStart, commentContinue, commentEnd, requestedLocale, finputs);
+						}
+						fout.flush();
+						return new Fragment(writer, finputs);
+					}
+				};
+				FutureTask<Fragment> task = new FutureTask<Fragment>(callable);
+				if (files.size() > 1) {
+					preprocessor.execute(task);
+				}
+				else {
+					task.run();
+				}
+				fragments.add(task);
+			}
+			for (Future<Fragment> future : fragments) {
+				Fragment fragment = future.get();
+				texts.add(fragment.text.toString());
+				if (inputs != null) {
+					inputs.addAll(fragment.inputs);
+				}
+			}
+			return texts;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while preprocessing");
+		}
+		catch (ExecutionException e) {
+			throw toIOException(e);
+		}
+		finally {
+			for (Future<Fragment> future : fragments) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	static Map<String,String> getSubstOverrides(String appContextPath, String cacheBusterVersion,
+												  Map<String,String> info) {
+		Map<String,String> substOverrides = new HashMap<String,String>();
+		substOverrides.put(Manifest.S_APP_CONTEXT_PATH, appContextPath);
+		substOverrides.put(Manifest.S_JS_VERSION, cacheBusterVersion);
+		// colors
+		substOverrides.put(Manifest.S_SKIN_FOREGROUND_COLOR, info.get(A_SKIN_FOREGROUND_COLOR));
+		substOverrides.put(Manifest.S_SKIN_BACKGROUND_COLOR, info.get(A_SKIN_BACKGROUND_COLOR));
+		substOverrides.put(Manifest.S_SKIN_SECONDARY_COLOR, info.get(A_SKIN_SECONDARY_COLOR));
+		substOverrides.put(Manifest.S_SKIN_SELECTION_COLOR, info.get(A_SKIN_SELECTION_COLOR));
+		// images
+		substOverrides.put(Manifest.S_SKIN_LOGO_LOGIN_BANNER, info.get(A_SKIN_LOGO_LOGIN_BANNER));
+		substOverrides.put(Manifest.S_SKIN_LOGO_APP_BANNER, info.get(A_SKIN_LOGO_APP_BANNER));
+		substOverrides.put(Manifest.S_SKIN_LOGO_URL, info.get(A_SKIN_LOGO_URL));
+		// favicon
+		substOverrides.put(Manifest.S_SKIN_FAVICON, info.get(A_SKIN_FAVICON));
+		// help
+		substOverrides.put(Manifest.S_HELP_ADMIN_URL, info.get(A_HELP_ADMIN_URL));
+		substOverrides.put(Manifest.S_HELP_ADVANCED_URL, info.get(A_HELP_ADVANCED_URL));
+		substOverrides.put(Manifest.S_HELP_DELEGATED_URL, info.get(A_HELP_DELEGATED_URL));
+		substOverrides.put(Manifest.S_HELP_STANDARD_URL, info.get(A_HELP_STANDARD_URL));
+		return substOverrides;
+	}
+
+	/**
+	 * Returns the comma-separated list of file names (without extension)
+	 * from the last segment of the URI.
+	 */
+	private static String getFilenames(String uri) {
+		String filenames = uri;
+		int slash = uri.lastIndexOf('/');
+		if (slash != -1) {
+			filenames = uri.substring(slash + 1);
+		}
+		int dot = filenames.lastIndexOf('.');
+		if (dot != -1) {
+			filenames = filenames.substring(0, dot);
+		}
+		return filenames;
+	}
+
+	/**
+	 * Replaces the images that the manifest marked for inlining with
+	 * data URIs, in order, as long as they are small enough and fit into
+	 * the budget of the bundle. Images referenced more than once in the
+	 * bundle (e.g. sprites) are not inlined because every reference
+	 * would carry a copy. In other than CSS bundles, the marks are only
+	 * removed.
+	 */
+	private List<String> inlineImages(List<String> texts, boolean inline, File rootDir,
+									  String appContextPath, Collection<File> inputs)
+			throws IOException {
+		Map<String,Integer> counts = new HashMap<String,Integer>();
+		for (String text : texts) {
+			Matcher matcher = RE_INLINE_IMAGE.matcher(text);
+			while (matcher.find()) {
+				Integer count = counts.get(matcher.group(1));
+				counts.put(matcher.group(1), count != null ? count + 1 : 1);
+			}
+		}
+		if (counts.isEmpty()) {
+			return texts;
+		}
+		long budget = inlineImageBudget;
+		List<String> result = new ArrayList<String>(texts.size());
+		for (String text : texts) {
+			Matcher matcher = RE_INLINE_IMAGE.matcher(text);
+			StringBuffer str = new StringBuffer();
+			while (matcher.find()) {
+				String url = matcher.group(1);
+				String replacement = url;
+				File file = inline && counts.get(url) == 1 ? getImageFile(rootDir, appContextPath, url) : null;
+				if (file != null && file.length() <= inlineImageMaxSize) {
+					String dataURI = getInlineImage(file);
+					if (dataURI != null && dataURI.length() <= budget) {
+						budget -= dataURI.length();
+						replacement = dataURI;
+						if (inputs != null) {
+							inputs.add(file);
+						}
+					}
+				}
+				matcher.appendReplacement(str, Matcher.quoteReplacement("background-image:url(" + replacement + ")"));
+			}
+			matcher.appendTail(str);
+			result.add(str.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the file in the webapp for the absolute URL, or null if it
+	 * is not an image file of this webapp.
+	 */
+	private static File getImageFile(File rootDir, String appContextPath, String url) throws IOException {
+		String path = url.replaceAll("[?#].*$", "");
+		String prefix = appContextPath != null ? appContextPath + "/" : "/";
+		if (!path.startsWith(prefix) || getImageType(path) == null) {
+			return null;
+		}
+		File file = new File(rootDir, path.substring(prefix.length()));
+		// NOTE: Don't follow the URL out of the webapp.
+		if (!file.getCanonicalPath().startsWith(rootDir.getCanonicalPath() + File.separator) || !file.isFile()) {
+			return null;
+		}
+		return file;
+	}
+
+	private static String getImageType(String path) {
+		String name = path.toLowerCase();
+		if (name.endsWith(".png")) return "image/png";
+		if (name.endsWith(".gif")) return "image/gif";
+		if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+		if (name.endsWith(".svg")) return "image/svg+xml";
+		return null;
+	}
+
+	/**
+	 * Returns the image as a data URI. The URI is cached by the hash of
+	 * the image so that identical images are encoded (and kept) once;
+	 * the hash of a file is recomputed only when it changes.
+	 */
+	private static String getInlineImage(File file) throws IOException {
+		ImageHash hash = imageHashes.get(file);
+		byte[] bytes = null;
+		if (hash == null || hash.isStale(file)) {
+			bytes = Files.readAllBytes(file.toPath());
+			hash = new ImageHash(file, SkinBundle.computeHash(bytes));
+			imageHashes.put(file, hash);
+		}
+		String dataURI = inlineImages.get(hash.hash);
+		if (dataURI == null) {
+			if (bytes == null) {
+				bytes = Files.readAllBytes(file.toPath());
+			}
+			dataURI = "data:" + getImageType(file.getName()) + ";base64," + DatatypeConverter.printBase64Binary(bytes);
+			inlineImages.put(hash.hash, dataURI);
+		}
+		return dataURI;
+	}
+
+	/** Returns whether the file exists, using the cached directory listing. */
+	static boolean exists(File file) {
+		File dir = file.getParentFile();
+		if (dir == null) {
+			return file.exists();
+		}
+		long now = System.currentTimeMillis();
+		DirListing listing = dirListings.get(dir);
+		if (listing == null || now - listing.checked >= DIR_LISTING_CHECK_INTERVAL) {
+			long lastModified = dir.lastModified();
+			if (listing != null && listing.isValid(lastModified)) {
+				listing.checked = now;
+			}
+			else {
+				listing = new DirListing(dir, lastModified);
+				dirListings.put(dir, listing);
+			}
+		}
+		return listing.names.contains(file.getName());
 	}
 
 	static void addLocaleFiles(List<File> files, Locale requestedLocale,
@@ -953,7 +2583,7 @@ public class SkinResources
 			//	   first entry seen takes precedence.
 			String language = locale.getLanguage();
 			File langFile = new File(dir, filename+"_"+language+ext);
-			if (langFile.exists()) {
+			if (exists(langFile)) {
 				if (ZimbraLog.webclient.isDebugEnabled()) {
 					ZimbraLog.webclient.debug("  adding file: "+langFile.getAbsolutePath());
 				}
@@ -962,7 +2592,7 @@ public class SkinResources
 			String country = locale.getCountry();
 			if (country != null && country.length() > 0) {
 				File langCountryFile = new File(dir, filename+"_"+language+"_"+country+ext);
-				if (langCountryFile.exists()) {
+				if (exists(langCountryFile)) {
 					if (ZimbraLog.webclient.isDebugEnabled()) {
 						ZimbraLog.webclient.debug("  adding file: "+langCountryFile.getAbsolutePath());
 					}
@@ -971,7 +2601,7 @@ public class SkinResources
 				String variant = locale.getVariant();
 				if (variant != null && variant.length() > 0) {
 					File langCountryVariantFile = new File(dir, filename+"_"+language+"_"+country+"_"+variant+ext);
-					if (langCountryVariantFile.exists()) {
+					if (exists(langCountryVariantFile)) {
 						if (ZimbraLog.webclient.isDebugEnabled()) {
 							ZimbraLog.webclient.debug("  adding file: "+langCountryVariantFile.getAbsolutePath());
 						}
@@ -1005,6 +2635,23 @@ public class SkinResources
 						   String commentEnd,
 						   Locale locale)
 			throws IOException {
+		preprocess(file, writer, macros, manifest, commentStart, commentContinue, commentEnd, locale, null);
+	}
+
+	/**
+	 * Preprocesses the file and its locale variants. If <code>inputs</code>
+	 * is not null, every file that was read is added to it.
+	 */
+	static void preprocess(File file,
+						   Writer writer,
+						   Map<String, String> macros,
+						   Manifest manifest,
+						   String commentStart,
+						   String commentContinue,
+						   String commentEnd,
+						   Locale locale,
+						   Collection<File> inputs)
+			throws IOException {
 		String filename = file.getName().replaceAll("\\..*?$", "");
 		String ext = file.getName().replaceAll("^.*(\\..*?)$", "$1");
 
@@ -1015,6 +2662,9 @@ public class SkinResources
 
 		// print the files in order
 		PrintWriter out = new PrintWriter(writer);
+		if (inputs != null) {
+			inputs.addAll(files);
+		}
 		for (File ifile : files) {
 			preprocess0(ifile , out, macros, manifest, commentStart, commentContinue, commentEnd);
 		}
@@ -1036,57 +2686,7 @@ public class SkinResources
 			out.println();
 		}
 
-		BufferedReader in = new BufferedReader(new FileReader(file));
-		Stack<Boolean> ignore = new Stack<Boolean>();
-		ignore.push(false);
-		String line;
-		while ((line = in.readLine()) != null) {
-			Matcher ifdef = RE_IFDEF.matcher(line);
-			if (ifdef.matches()) {
-//				out.print(commentStart);
-//				out.print("Info: "+line);
-//				out.println(commentEnd);
-				String macroName = ifdef.group(1);
-				ignore.push(ignore.peek() || macros.get(macroName) == null);
-				continue;
-			}
-			Matcher ifndef = RE_IFNDEF.matcher(line);
-			if (ifndef.matches()) {
-//				out.print(commentStart);
-//				out.print("Info: "+line);
-//				out.println(commentEnd);
-				String macroName = ifndef.group(1);
-				ignore.push(ignore.peek() || macros.get(macroName) != null);
-				continue;
-			}
-			Matcher endif = RE_ENDIF.matcher(line);
-			if (endif.matches()) {
-//				out.print(commentStart);
-//				out.print("Info: "+line);
-//				out.println(commentEnd);
-				ignore.pop();
-				continue;
-			}
-			Matcher elseMatcher = RE_ELSE.matcher(line);
-			if (elseMatcher.matches()) {
-//				out.print(commentStart);
-//				out.print("Info: "+line);
-//				out.println(commentEnd);
-				boolean ignoring = ignore.pop();
-				ignore.push(!ignoring);
-				continue;
-			}
-			if (ignore.peek()) {
-				continue;
-			}
-
-			if (manifest != null) {
-				line = manifest.replace(line);
-			}
-			out.println(line);
-		}
-		in.close();
-
+		getCompiledFile(file).render(out, macros, manifest);
 		out.flush();
 	}
 
@@ -1094,6 +2694,26 @@ public class SkinResources
 	// Private static functions
 	//
 
+	/**
+	 * Returns the key of everything that selects a bundle except for the
+	 * host name and the browser. The key does not depend on the host so
+	 * that it can also be used for precompiled bundles.
+	 */
+	static String getFootprintKey(String uri, String client, String skin, String templates,
+								  String cacheBusterVersion, Locale locale) {
+		return uri + ":" + client + ":" + skin + "/templates=" + templates + ":" + cacheBusterVersion + ":" + locale;
+	}
+
+	/** Returns the cache id of the bundle without the host name. */
+	static String getBundleKey(String uri, String type, String client, String skin, String templates,
+							   String browserType, String cacheBusterVersion, Locale locale) {
+		String key = uri + ":" + client + ":" + skin + "/templates=" + templates + ":" + browserType + ":" + cacheBusterVersion;
+		if (type.equals(T_JAVASCRIPT) || type.equals(T_CSS) || type.equals(T_APPCACHE)) {
+			key += ":" + locale;
+		}
+		return key;
+	}
+
 	private String getServerName(HttpServletRequest req) {
 		String serverName = req.getParameter(P_CUSTOMER_DOMAIN);
 
@@ -1134,6 +2754,192 @@ public class SkinResources
 				!servletPath.equals(req.getServletPath()));
 	}
 
+	/**
+	 * Returns the preferred encoding that the client accepts or null to
+	 * send the raw content. Included requests are never encoded because
+	 * the content is written into the including response. The legacy
+	 * <code>compress</code> parameter still forces gzip.
+	 *
+	 * @param req       The HTTP request
+	 * @param agentInfo The classified user agent
+	 */
+	private SkinEncoder getEncoder(HttpServletRequest req, UserAgentInfo agentInfo) {
+		if (encoders.isEmpty() || isIncludedRequest(req) || agentInfo.macros.get("MSIE_6") != null) {
+			return null;
+		}
+		Map<String,Float> accepted = getAcceptedEncodings(req.getHeader(H_ACCEPT_ENCODING));
+		SkinEncoder preferred = null;
+		float preferredQ = 0;
+		for (SkinEncoder encoder : encoders) {
+			Float q = accepted.get(encoder.getName());
+			if (q == null) {
+				q = accepted.get("*");
+			}
+			// NOTE: Ties go to the encoder registered first.
+			if (q != null && q > preferredQ) {
+				preferred = encoder;
+				preferredQ = q;
+			}
+		}
+		if (preferred == null) {
+			String compressStr = req.getParameter(P_COMPRESS);
+			if (compressStr != null && (compressStr.equals("true") || compressStr.equals("1"))) {
+				for (SkinEncoder encoder : encoders) {
+					if (encoder.getName().equals("gzip")) {
+						return encoder;
+					}
+				}
+			}
+		}
+		return preferred;
+	}
+
+	/**
+	 * Parses an Accept-Encoding header into encoding names (lower-case)
+	 * and their quality values.
+	 */
+	static Map<String,Float> getAcceptedEncodings(String header) {
+		if (header == null) {
+			return Collections.emptyMap();
+		}
+		Map<String,Float> accepted = new HashMap<String,Float>();
+		for (String part : header.split(",")) {
+			String[] params = part.split(";");
+			String name = params[0].trim().toLowerCase();
+			if (name.length() == 0) {
+				continue;
+			}
+			float q = 1;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2).trim());
+					}
+					catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			accepted.put(name, q);
+		}
+		return accepted;
+	}
+
+	/** Sets the headers that let browsers and proxies cache a bundle. */
+	private static void setCacheHeaders(HttpServletRequest req, HttpServletResponse resp) {
+		// We browser sniff and negotiate the encoding so need to make
+		// sure any caches do the same.
+		resp.addHeader("Vary", H_ACCEPT_ENCODING + ", " + H_USER_AGENT);
+		// Cache It!
+		String maxAge = (String)req.getAttribute("init.Expires");
+		if (maxAge == null) {
+			maxAge = "2595600";
+		}
+		resp.setHeader("Cache-control", "public, max-age="+maxAge);
+	}
+
+	private void sendNotModified(HttpServletRequest req, HttpServletResponse resp,
+								 String etag, long lastModified, String type, String skin) {
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: not modified");
+		setCacheHeaders(req, resp);
+		resp.setHeader("ETag", etag);
+		resp.setDateHeader("Last-Modified", lastModified);
+		stats.notModified(type, skin);
+		resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+	/** Remembers the entity tag of the variant of the bundle just served. */
+	private void putValidator(String cacheId, SkinBundle bundle, SkinEncoder encoder, String etag) {
+		Validator validator = validators.get(cacheId);
+		if (validator == null || !validator.etag.equals(bundle.getETag())) {
+			validator = new Validator(bundle);
+			validators.put(cacheId, validator);
+		}
+		validator.putETag(encoder, etag);
+	}
+
+	/**
+	 * Returns whether the bundle that the validator was taken from is
+	 * still the current one: it is still in the memory cache (where the
+	 * watcher evicts it when its inputs change), or its input files
+	 * haven't changed.
+	 */
+	private boolean isCurrent(String cacheId, Validator validator) {
+		if (staleBundles.contains(cacheId)) {
+			return false;
+		}
+		SkinBundle bundle = getRetainedBundle(cacheId);
+		if (bundle != null && bundle.getETag().equals(validator.etag)) {
+			return true;
+		}
+		try {
+			return validator.deps != null && !validator.deps.isStale();
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks the conditional request headers against the entity tag and
+	 * modification time of the content about to be sent. As required by
+	 * HTTP, If-Modified-Since is ignored when If-None-Match is present.
+	 */
+	private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				// NOTE: If-None-Match uses the weak comparison function.
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = req.getDateHeader("If-Modified-Since");
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+		return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+	}
+
+	/** Returns the cause of the exception, rethrowing unchecked ones. */
+	private static IOException toIOException(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException) {
+			return (IOException)cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException)cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error)cause;
+		}
+		return new IOException(cause);
+	}
+
+	/**
+	 * Returns the modification time of the newest of the given files or
+	 * the current time if they are not known.
+	 */
+	private static long getLastModified(Collection<File> files) {
+		long lastModified = 0;
+		if (files != null) {
+			for (File file : files) {
+				lastModified = Math.max(lastModified, file.lastModified());
+			}
+		}
+		return lastModified > 0 ? lastModified : System.currentTimeMillis();
+	}
+
 	private static Cookie getCookie(HttpServletRequest req, String name) {
 		Cookie[] cookies = req.getCookies();
 		if (cookies != null) {
@@ -1146,7 +2952,46 @@ public class SkinResources
 		return null;
 	}
 
-	private static String getMacroNames(Set<String> mnames) {
+	/** Returns the subset of the macros whose names are in the footprint. */
+	static Map<String, String> getMacros(Map<String, String> macros, Set<String> footprint) {
+		Map<String, String> subset = new TreeMap<String, String>();
+		for (Map.Entry<String, String> entry : macros.entrySet()) {
+			if (footprint.contains(entry.getKey())) {
+				subset.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(subset);
+	}
+
+	/**
+	 * Returns the names of all of the macros that can affect the output
+	 * generated from the given files: every macro named in an #ifdef or
+	 * #ifndef, regardless of nesting, plus the macros checked by the skin
+	 * methods.
+	 */
+	static Set<String> getMacroReferences(Collection<File> files) throws IOException {
+		Set<String> mnames = new HashSet<String>(Manifest.BROWSER_MACROS);
+		for (File file : files) {
+			if (!file.isFile()) continue;
+			mnames.addAll(getCompiledFile(file).macroNames);
+		}
+		return mnames;
+	}
+
+	/**
+	 * Returns the compiled form of the file, compiling it if it hasn't
+	 * been compiled yet or if it has changed since.
+	 */
+	static CompiledFile getCompiledFile(File file) throws IOException {
+		CompiledFile compiled = compiledFiles.get(file);
+		if (compiled == null || compiled.isStale(file)) {
+			compiled = new CompiledFile(file);
+			compiledFiles.put(file, compiled);
+		}
+		return compiled;
+	}
+
+	static String getMacroNames(Set<String> mnames) {
 		Set<String> snames = new TreeSet<String>(mnames);
 		StringBuilder str = new StringBuilder();
 		for (String mname : snames) {
@@ -1205,7 +3050,7 @@ public class SkinResources
 		return StringUtil.escapeHtml(skin);
 	}
 
-	private static String getContentType(String uri) {
+	static String getContentType(String uri) {
 		int index = uri.lastIndexOf('/');
 		if (index != -1) {
 			uri = uri.substring(0, index);
@@ -1224,7 +3069,32 @@ public class SkinResources
 		return agent;
 	}
 
-	private static Map<String, String> parseUserAgent(String agent) {
+	private UserAgentInfo getUserAgentInfo(String agent) {
+		String key = agent != null ? agent : "";
+		UserAgentInfo info = userAgents.get(key);
+		if (info != null) {
+			userAgentHits.incrementAndGet();
+			return info;
+		}
+		userAgentMisses.incrementAndGet();
+		info = new UserAgentInfo(parseUserAgent(agent));
+		userAgents.put(key, info);
+		return info;
+	}
+
+	/**
+	 * Returns the number of distinct user agents currently cached and
+	 * the hit ratio of the user agent cache.
+	 */
+	String getUserAgentStats() {
+		long hits = userAgentHits.get();
+		long total = hits + userAgentMisses.get();
+		long ratio = total > 0 ? hits * 100 / total : 0;
+		return "agents=" + userAgents.size() + ", hits=" + hits + ", misses=" + (total - hits) + ", ratio=" + ratio + "%" +
+			", evictions=" + userAgents.getEvictions();
+	}
+
+	static Map<String, String> parseUserAgent(String agent) {
 		Map<String, String> macros = new HashMap<String, String>();
 
 		// state
@@ -1295,8 +3165,7 @@ public class SkinResources
 
 		if (agtArr.hasMoreTokens()) {
 			String token = agtArr.nextToken();
-			Pattern pattern = Pattern.compile("\\s*mozilla");
-			Matcher mozilla = pattern.matcher(token);
+			Matcher mozilla = RE_MOZILLA.matcher(token);
 			if (mozilla.find()) {
 				index = mozilla.start();
 				beginsWithMozilla = true;
@@ -1505,6 +3374,301 @@ public class SkinResources
 	// Classes
 	//
 
+	/** The preprocessed text of a file and the files that were read. */
+	static class Fragment {
+
+		// Data
+		final CharArrayWriter text;
+		final List<File> inputs;
+
+		// Constructors
+		Fragment(CharArrayWriter text, List<File> inputs) {
+			this.text = text;
+			this.inputs = inputs;
+		}
+
+	} // class Fragment
+
+	/** The content hash of an image file at a given modification time. */
+	static class ImageHash {
+
+		// Data
+		final long lastModified;
+		final long length;
+		final String hash;
+
+		// Constructors
+		ImageHash(File file, String hash) {
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+			this.hash = hash;
+		}
+
+		// Public methods
+		boolean isStale(File file) {
+			return file.lastModified() != lastModified || file.length() != length;
+		}
+
+	} // class ImageHash
+
+	/**
+	 * Thrown when a bundle can't be generated right now because too many
+	 * files are waiting to be minified. The request is answered with a
+	 * 503 so that the client tries again later.
+	 */
+	static class OverloadedException extends IOException {
+
+		// Constructors
+		OverloadedException(String message) {
+			super(message);
+		}
+
+	} // class OverloadedException
+
+	/** Writes the bytes to every one of the streams. */
+	static class TeeOutputStream extends OutputStream {
+
+		// Data
+		private final List<OutputStream> outs;
+
+		// Constructors
+		TeeOutputStream(List<OutputStream> outs) {
+			this.outs = outs;
+		}
+
+		// OutputStream methods
+		@Override
+		public void write(int b) throws IOException {
+			for (OutputStream out : outs) {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (OutputStream out : outs) {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			for (OutputStream out : outs) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (OutputStream out : outs) {
+				out.close();
+			}
+		}
+
+	} // class TeeOutputStream
+
+	/**
+	 * The entity tags (by encoding) and modification time of a bundle,
+	 * with its dependency record.
+	 */
+	static class Validator {
+
+		// Constants
+		private static final String IDENTITY = "identity";
+
+		// Data
+		final String etag;
+		final long lastModified;
+		final SkinDependencies deps;
+		private final ConcurrentMap<String,String> etags = new ConcurrentHashMap<String,String>();
+
+		// Constructors
+		Validator(SkinBundle bundle) {
+			this.etag = bundle.getETag();
+			this.lastModified = bundle.getLastModified();
+			this.deps = bundle.getDependencies();
+		}
+
+		// Public methods
+		String getETag(SkinEncoder encoder) {
+			return etags.get(encoder != null ? encoder.getName() : IDENTITY);
+		}
+
+		void putETag(SkinEncoder encoder, String etag) {
+			etags.put(encoder != null ? encoder.getName() : IDENTITY, etag);
+		}
+
+	} // class Validator
+
+	/** The names of the files in a directory at a given modification time. */
+	static class DirListing {
+
+		// Data
+		final long lastModified;
+		final long listed;
+		final Set<String> names;
+		/** When the modification time was last found unchanged. */
+		volatile long checked;
+
+		// Constructors
+		DirListing(File dir, long lastModified) {
+			this.lastModified = lastModified;
+			this.listed = System.currentTimeMillis();
+			String[] filenames = dir.list();
+			this.names = filenames != null
+					   ? new HashSet<String>(Arrays.asList(filenames))
+					   : Collections.<String>emptySet();
+			// NOTE: A listing that isn't trusted yet is checked again
+			// NOTE: on the next probe.
+			this.checked = isValid(lastModified) ? listed : 0;
+		}
+
+		// Public methods
+		boolean isValid(long lastModified) {
+			// NOTE: The directory may have changed again within the
+			// NOTE: resolution of its modification time after it was
+			// NOTE: listed; such a listing is not trusted.
+			return lastModified == this.lastModified && listed - this.lastModified > 2000;
+		}
+
+	} // class DirListing
+
+	/**
+	 * A source file compiled into a flat list of preprocessor operations
+	 * so that the directives don't have to be parsed again for every
+	 * browser and locale variant. Rendering is a single pass over the
+	 * operations that evaluates the conditionals with the given macros
+	 * and only runs the manifest substitutions on lines that contain
+	 * substitution tokens.
+	 */
+	static class CompiledFile {
+
+		// Constants
+		private static final byte OP_LINE = 0;
+		private static final byte OP_SUBST = 1;
+		private static final byte OP_IFDEF = 2;
+		private static final byte OP_IFNDEF = 3;
+		private static final byte OP_ENDIF = 4;
+		private static final byte OP_ELSE = 5;
+
+		// Data
+		final long lastModified;
+		final long length;
+		final Set<String> macroNames = new HashSet<String>();
+		private final byte[] ops;
+		private final String[] args;
+
+		// Constructors
+		CompiledFile(File file) throws IOException {
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+			List<Byte> opList = new ArrayList<Byte>();
+			List<String> argList = new ArrayList<String>();
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.indexOf('#') != -1) {
+						Matcher ifdef = RE_IFDEF.matcher(line);
+						if (ifdef.matches()) {
+							opList.add(OP_IFDEF);
+							argList.add(ifdef.group(1));
+							macroNames.add(ifdef.group(1));
+							continue;
+						}
+						Matcher ifndef = RE_IFNDEF.matcher(line);
+						if (ifndef.matches()) {
+							opList.add(OP_IFNDEF);
+							argList.add(ifndef.group(1));
+							macroNames.add(ifndef.group(1));
+							continue;
+						}
+						if (RE_ENDIF.matcher(line).matches()) {
+							opList.add(OP_ENDIF);
+							argList.add(null);
+							continue;
+						}
+						if (RE_ELSE.matcher(line).matches()) {
+							opList.add(OP_ELSE);
+							argList.add(null);
+							continue;
+						}
+					}
+					// NOTE: Substitution tokens and skin methods are both
+					// NOTE: delimited by '@' so lines without one are
+					// NOTE: output as is.
+					opList.add(line.indexOf('@') != -1 ? OP_SUBST : OP_LINE);
+					argList.add(line);
+				}
+			}
+			finally {
+				in.close();
+			}
+			this.ops = new byte[opList.size()];
+			for (int i = 0; i < ops.length; i++) {
+				ops[i] = opList.get(i);
+			}
+			this.args = argList.toArray(new String[argList.size()]);
+		}
+
+		// Public methods
+		boolean isStale(File file) {
+			return file.lastModified() != lastModified || file.length() != length;
+		}
+
+		void render(PrintWriter out, Map<String, String> macros, Manifest manifest) {
+			Stack<Boolean> ignore = new Stack<Boolean>();
+			ignore.push(false);
+			for (int i = 0; i < ops.length; i++) {
+				switch (ops[i]) {
+					case OP_IFDEF: {
+						ignore.push(ignore.peek() || macros.get(args[i]) == null);
+						break;
+					}
+					case OP_IFNDEF: {
+						ignore.push(ignore.peek() || macros.get(args[i]) != null);
+						break;
+					}
+					case OP_ENDIF: {
+						ignore.pop();
+						break;
+					}
+					case OP_ELSE: {
+						boolean ignoring = ignore.pop();
+						ignore.push(!ignoring);
+						break;
+					}
+					default: {
+						if (ignore.peek()) {
+							break;
+						}
+						String line = args[i];
+						if (ops[i] == OP_SUBST && manifest != null) {
+							line = manifest.replace(line);
+						}
+						out.println(line);
+					}
+				}
+			}
+		}
+
+	} // class CompiledFile
+
+	/** The result of classifying a user agent string. */
+	static class UserAgentInfo {
+
+		// Data
+		final Map<String, String> macros;
+		final String browserType;
+
+		// Constructors
+		UserAgentInfo(Map<String, String> macros) {
+			this.macros = Collections.unmodifiableMap(macros);
+			this.browserType = getMacroNames(macros.keySet());
+		}
+
+	} // class UserAgentInfo
+
 	static class Manifest {
 
 		//
@@ -1542,6 +3706,22 @@ public class SkinResources
 		private static final String E_ADVANCED = "advanced";
 		private static final String E_IGNORE_SUFFIX = "Ignore";
 
+		/**
+		 * The browser macros checked by the skin methods (e.g. <code>@grad()@</code>).
+		 * <strong>Note:</strong> Keep in sync with the calls to {@link #isBrowser}.
+		 */
+		static final Set<String> BROWSER_MACROS = new HashSet<String>(Arrays.asList(
+			"CHROME", "CHROME_4_OR_HIGHER", "FIREFOX", "FIREFOX_4_OR_HIGHER",
+			"MSIE", "MSIE_9", "MSIE_9_OR_HIGHER", "MSIE_LOWER_THAN_7", "MSIE_LOWER_THAN_9",
+			"SAFARI", "SAFARI_5_OR_HIGHER", "WEBKIT"
+		));
+
+		/**
+		 * Marks the output of <code>@image()@</code> so that the image can
+		 * be inlined when the bundle is assembled (see inlineImages).
+		 */
+		static final String INLINE_MARKER = "/*@inline*/";
+
 		private static final Pattern RE_TOKEN = Pattern.compile("@.+?@");
 		private static final Pattern RE_SKIN_METHOD = Pattern.compile("@(\\w+)\\((.*?)\\)@");
 
@@ -1561,6 +3741,11 @@ public class SkinResources
 		private Map<String, String> macros;
 
 		private Properties substitutions = new Properties();
+		private boolean inlineImages;
+
+		/** Files (and directories) this manifest was built from and their timestamps. */
+		private Map<File,Long> sources = new LinkedHashMap<File,Long>();
+		private boolean resolved;
 
 		//
 		// Constructors
@@ -1597,6 +3782,21 @@ public class SkinResources
 			getFiles(document, E_SCRIPT, skinDir, scriptList);
 			getFiles(document, E_TEMPLATES, skinDir, templateList);
 
+			// remember sources
+			addSource(manifestFile);
+			for (File file : substList) {
+				List<File> files = new LinkedList<File>();
+				files.add(file);
+				SkinResources.addLocaleFiles(files, locale, file.getParentFile(),
+						file.getName().replaceAll("\\..*?$", ""), file.getName().replaceAll("^.*(\\..*?)$", "$1"));
+				for (File source : files) {
+					addSource(source);
+				}
+				// NOTE: Locale files that are added later only show up in
+				// NOTE: the timestamp of their directory.
+				addSource(file.getParentFile());
+			}
+
 			// process substitutions
 			for (File file : substList) {
 				if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: subst file = " + file);
@@ -1665,6 +3865,10 @@ public class SkinResources
 
 			if (ZimbraLog.webclient.isDebugEnabled())
 				ZimbraLog.webclient.debug("DEBUG: _SkinName_ = " + substitutions.getProperty("_SkinName_"));
+
+			// NOTE: From now on the manifest can be shared between requests
+			// NOTE: so the resolved substitutions must not change anymore.
+			resolved = true;
 		} // <init>(File,Map<String,String>,String,String)
 
 		//
@@ -1704,12 +3908,37 @@ public class SkinResources
 			return null;
 		}
 
+		/**
+		 * Enables marking the images of <code>@image()@</code> so that
+		 * they can be inlined as data URIs.
+		 */
+		public void setInlineImages(boolean inlineImages) {
+			this.inlineImages = inlineImages;
+		}
+
 		// operations
 
 		public String replace(String s) {
 			return replace(null, s);
 		}
 
+		public Set<File> getSources() {
+			return sources.keySet();
+		}
+
+		/**
+		 * Returns true if the manifest file or any of the substitution
+		 * files have changed since this manifest was loaded.
+		 */
+		public boolean isStale() {
+			for (Map.Entry<File,Long> entry : sources.entrySet()) {
+				if (entry.getKey().lastModified() != entry.getValue()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		//
 		// Private methods
 		//
@@ -1736,7 +3965,9 @@ public class SkinResources
 			if (stack != null) {
 				stack.pop();
 			}
-			substitutions.setProperty(pname, pvalue);
+			if (!resolved) {
+				substitutions.setProperty(pname, pvalue);
+			}
 			return pvalue;
 		}
 
@@ -2096,7 +4327,10 @@ public class SkinResources
 							+ (width != null ? "width:"+width+";" : "")
 							+ (height != null ? "height:"+height+";" : "");
 			} else {
-				return "background-image:url(" + url + ");"
+				// NOTE: Old versions of IE don't support data URIs (or
+				// NOTE: only small ones).
+				String marker = inlineImages && !isBrowser("MSIE_LOWER_THAN_9") ? INLINE_MARKER : "";
+				return marker + "background-image:url(" + url + ");"
 							+ (repeat != null ? "background-repeat:"+repeat+";" : "")
 							+ (width != null ? "width:"+width+";" : "")
 							+ (height != null ? "height:"+height+";" : "");
@@ -2232,6 +4466,10 @@ public class SkinResources
 		// Private functions
 		//
 
+		private void addSource(File file) {
+			sources.put(file, file.lastModified());
+		}
+
 		private void getFiles(Document document, String ename,
 							  File baseDir, List<File> list) {
 			Element docElement = getFirstChildElement(document, E_SKIN);
@@ -0,0 +1,372 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request metrics of {@link SkinResources}: which cache tier served a
+ * request, how long generating a bundle took (split into its phases)
+ * and how many bytes were served with and without a content encoding.
+ * Every number is kept in total, per content type and per skin (skin
+ * names are validated against the installed skins, so the number of
+ * groups is bounded). Groups are never removed: a reset zeroes their
+ * counters in place, so a request that is being counted during the
+ * reset isn't lost in a discarded group.
+ */
+public class SkinResourcesStats implements SkinResourcesStatsMBean {
+
+	//
+	// Constants
+	//
+
+	static final String TIER_MEMORY = "memory";
+	static final String TIER_DISK = "disk";
+	static final String TIER_PRECOMPILED = "precompiled";
+	static final String TIER_GENERATE = "generate";
+
+	/** Time to look up the domain overrides (a SOAP request on a miss). */
+	static final String PHASE_DOMAIN = "domain";
+	static final String PHASE_MANIFEST = "manifest";
+	static final String PHASE_PREPROCESS = "preprocess";
+	static final String PHASE_MINIFY = "minify";
+	static final String PHASE_TOTAL = "total";
+
+	private static final String[] PHASES = {
+		PHASE_DOMAIN, PHASE_MANIFEST, PHASE_PREPROCESS, PHASE_MINIFY, PHASE_TOTAL
+	};
+
+	/** Upper bounds (in ms) of the histogram buckets. */
+	private static final long[] BUCKETS = { 10, 50, 100, 500, 1000, 5000 };
+
+	private static final String G_ALL = "all";
+
+	//
+	// Data
+	//
+
+	private final ConcurrentMap<String,Group> groups = new ConcurrentHashMap<String,Group>();
+	/** The groups that a request of a content type counts in, by type. */
+	private final ConcurrentMap<String,TypeGroups> typeGroups = new ConcurrentHashMap<String,TypeGroups>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	//
+	// Public methods
+	//
+
+	public void hit(String type, String skin, String tier) {
+		for (Group group : getGroups(type, skin)) {
+			group.requests.incrementAndGet();
+			if (tier.equals(TIER_MEMORY)) {
+				group.memory.incrementAndGet();
+			}
+			else if (tier.equals(TIER_DISK)) {
+				group.disk.incrementAndGet();
+			}
+			else if (tier.equals(TIER_PRECOMPILED)) {
+				group.precompiled.incrementAndGet();
+			}
+			else {
+				group.generate.incrementAndGet();
+			}
+		}
+	}
+
+	public void notModified(String type, String skin) {
+		for (Group group : getGroups(type, skin)) {
+			group.notModified.incrementAndGet();
+		}
+	}
+
+	public void served(String type, String skin, boolean encoded, long bytes) {
+		for (Group group : getGroups(type, skin)) {
+			(encoded ? group.bytesEncoded : group.bytesRaw).addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Records the time (in ms) of a generation phase.
+	 *
+	 * @param skin The skin or null if not known to the caller.
+	 */
+	public void time(String type, String skin, String phase, long time) {
+		for (Group group : getGroups(type, skin)) {
+			group.phases.get(phase).add(time);
+		}
+	}
+
+	public void generationStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	public void generationFinished() {
+		inFlight.decrementAndGet();
+	}
+
+	//
+	// SkinResourcesStatsMBean methods
+	//
+
+	@Override
+	public long getRequests() {
+		return getGroup(G_ALL).requests.get();
+	}
+
+	@Override
+	public long getMemoryHits() {
+		return getGroup(G_ALL).memory.get();
+	}
+
+	@Override
+	public long getDiskHits() {
+		return getGroup(G_ALL).disk.get();
+	}
+
+	@Override
+	public long getPrecompiledHits() {
+		return getGroup(G_ALL).precompiled.get();
+	}
+
+	@Override
+	public long getGenerations() {
+		return getGroup(G_ALL).generate.get();
+	}
+
+	@Override
+	public long getNotModified() {
+		return getGroup(G_ALL).notModified.get();
+	}
+
+	@Override
+	public long getBytesServedRaw() {
+		return getGroup(G_ALL).bytesRaw.get();
+	}
+
+	@Override
+	public long getBytesServedEncoded() {
+		return getGroup(G_ALL).bytesEncoded.get();
+	}
+
+	@Override
+	public int getInFlightGenerations() {
+		return inFlight.get();
+	}
+
+	@Override
+	public long getAverageGenerationTime() {
+		return getGroup(G_ALL).phases.get(PHASE_TOTAL).getAverage();
+	}
+
+	@Override
+	public long getMaxGenerationTime() {
+		return getGroup(G_ALL).phases.get(PHASE_TOTAL).max.get();
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder str = new StringBuilder();
+		str.append("generating=").append(inFlight.get()).append('\n');
+		Map<String,Group> sorted = new TreeMap<String,Group>(groups);
+		Group all = sorted.remove(G_ALL);
+		if (all != null) {
+			all.append(G_ALL, str);
+		}
+		for (Map.Entry<String,Group> entry : sorted.entrySet()) {
+			entry.getValue().append(entry.getKey(), str);
+		}
+		return str.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (Group group : groups.values()) {
+			group.reset();
+		}
+	}
+
+	//
+	// Private methods
+	//
+
+	private Group[] getGroups(String type, String skin) {
+		TypeGroups tgroups = typeGroups.get(type);
+		if (tgroups == null) {
+			tgroups = new TypeGroups(getGroup(G_ALL), getGroup("type " + type));
+			TypeGroups existing = typeGroups.putIfAbsent(type, tgroups);
+			if (existing != null) {
+				tgroups = existing;
+			}
+		}
+		if (skin == null) {
+			return tgroups.groups;
+		}
+		Group[] sgroups = tgroups.skinGroups.get(skin);
+		if (sgroups == null) {
+			sgroups = new Group[] { tgroups.groups[0], tgroups.groups[1], getGroup("skin " + skin) };
+			Group[] existing = tgroups.skinGroups.putIfAbsent(skin, sgroups);
+			if (existing != null) {
+				sgroups = existing;
+			}
+		}
+		return sgroups;
+	}
+
+	private Group getGroup(String name) {
+		Group group = groups.get(name);
+		if (group == null) {
+			group = new Group();
+			Group existing = groups.putIfAbsent(name, group);
+			if (existing != null) {
+				group = existing;
+			}
+		}
+		return group;
+	}
+
+	//
+	// Classes
+	//
+
+	static class Group {
+
+		// Data
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong memory = new AtomicLong();
+		final AtomicLong disk = new AtomicLong();
+		final AtomicLong precompiled = new AtomicLong();
+		final AtomicLong generate = new AtomicLong();
+		final AtomicLong notModified = new AtomicLong();
+		final AtomicLong bytesRaw = new AtomicLong();
+		final AtomicLong bytesEncoded = new AtomicLong();
+		final Map<String,Histogram> phases = new TreeMap<String,Histogram>();
+
+		// Constructors
+		Group() {
+			for (String phase : PHASES) {
+				phases.put(phase, new Histogram());
+			}
+		}
+
+		// Public methods
+		void reset() {
+			for (AtomicLong counter : new AtomicLong[] {
+				requests, memory, disk, precompiled, generate, notModified, bytesRaw, bytesEncoded
+			}) {
+				counter.set(0);
+			}
+			for (Histogram histogram : phases.values()) {
+				histogram.reset();
+			}
+		}
+
+		void append(String name, StringBuilder str) {
+			str.append('[').append(name).append("]\n");
+			str.append("    requests=").append(requests.get());
+			str.append(" memory=").append(memory.get());
+			str.append(" disk=").append(disk.get());
+			str.append(" precompiled=").append(precompiled.get());
+			str.append(" generate=").append(generate.get());
+			str.append(" notModified=").append(notModified.get()).append('\n');
+			str.append("    bytesRaw=").append(bytesRaw.get());
+			str.append(" bytesEncoded=").append(bytesEncoded.get()).append('\n');
+			for (String phase : PHASES) {
+				Histogram histogram = phases.get(phase);
+				if (histogram.count.get() > 0) {
+					str.append("    ").append(phase).append(": ");
+					histogram.append(str);
+					str.append('\n');
+				}
+			}
+		}
+
+	} // class Group
+
+	/** Counts of times (in ms) in fixed buckets. */
+	static class Histogram {
+
+		// Data
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong sum = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+
+		// Public methods
+		void add(long time) {
+			int i = 0;
+			while (i < BUCKETS.length && time >= BUCKETS[i]) {
+				i++;
+			}
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(time);
+			long current;
+			while (time > (current = max.get()) && !max.compareAndSet(current, time)) {
+				// retry
+			}
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		long getAverage() {
+			long n = count.get();
+			return n > 0 ? sum.get() / n : 0;
+		}
+
+		void append(StringBuilder str) {
+			str.append("count=").append(count.get());
+			str.append(" avg=").append(getAverage()).append("ms");
+			str.append(" max=").append(max.get()).append("ms");
+			for (int i = 0; i < BUCKETS.length; i++) {
+				str.append(" <").append(BUCKETS[i]).append("ms=").append(buckets.get(i));
+			}
+			str.append(" >=").append(BUCKETS[BUCKETS.length - 1]).append("ms=").append(buckets.get(BUCKETS.length));
+		}
+
+	} // class Histogram
+
+	/**
+	 * The groups of a content type: the total and the type itself, plus
+	 * the skin for each skin, so that counting a request allocates nothing.
+	 */
+	static class TypeGroups {
+
+		// Data
+		final Group[] groups;
+		final ConcurrentMap<String,Group[]> skinGroups = new ConcurrentHashMap<String,Group[]>();
+
+		// Constructors
+		TypeGroups(Group all, Group type) {
+			this.groups = new Group[] { all, type };
+		}
+
+	} // class TypeGroups
+
+} // class SkinResourcesStats
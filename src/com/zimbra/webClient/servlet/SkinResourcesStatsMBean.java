@@ -0,0 +1,55 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+/**
+ * JMX view of the {@link SkinResources} request metrics. The totals
+ * are over all content types and skins; {@link #getReport} has the
+ * numbers per content type and per skin.
+ */
+public interface SkinResourcesStatsMBean {
+
+	public long getRequests();
+
+	public long getMemoryHits();
+
+	public long getDiskHits();
+
+	public long getPrecompiledHits();
+
+	public long getGenerations();
+
+	public long getNotModified();
+
+	public long getBytesServedRaw();
+
+	public long getBytesServedEncoded();
+
+	public int getInFlightGenerations();
+
+	/** Average time (in ms) to generate a bundle. */
+	public long getAverageGenerationTime();
+
+	public long getMaxGenerationTime();
+
+	/** The metrics per content type and per skin as plain text. */
+	public String getReport();
+
+	public void reset();
+
+} // interface SkinResourcesStatsMBean
@@ -0,0 +1,281 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Watches the input files of generated skin bundles and tells the
+ * listener which bundles are affected when a file changes, so that only
+ * those bundles have to be generated again instead of flushing the
+ * whole cache.
+ * <p>
+ * Only the directories that contain registered input files (and that
+ * are below one of the watched roots) are watched. A modified file
+ * affects the bundles generated from it; a file that is created or
+ * deleted affects every bundle generated from its directory because
+ * it may be a locale variant that the bundle picks up (or loses).
+ */
+class SkinWatcher {
+
+	//
+	// Data
+	//
+
+	private final List<Path> roots = new ArrayList<Path>();
+	private final Listener listener;
+	private final WatchService watchService;
+	private final Map<WatchKey,Path> dirs = new HashMap<WatchKey,Path>();
+	private final Map<Path,Set<String>> fileKeys = new HashMap<Path,Set<String>>();
+	private final Map<Path,Set<String>> dirKeys = new HashMap<Path,Set<String>>();
+	/** The registered files of each key, so that it is unregistered without a scan. */
+	private final Map<String,Set<Path>> keyFiles = new HashMap<String,Set<Path>>();
+	private final Thread thread;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * @param roots    The directories below which input files are watched.
+	 * @param listener Called (on the watcher thread) with the keys of the
+	 *                 bundles affected by a change.
+	 */
+	public SkinWatcher(Collection<File> roots, Listener listener) throws IOException {
+		for (File root : roots) {
+			this.roots.add(root.toPath().toAbsolutePath().normalize());
+		}
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "SkinWatcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	//
+	// Public methods
+	//
+
+	/**
+	 * Records that the bundle with the given key was generated from the
+	 * given files, replacing what was registered for the key before. If
+	 * one of them has been modified since the bundle was generated, the
+	 * listener is called right away.
+	 *
+	 * @param since The time (in ms) at which the generation started.
+	 */
+	public void register(String key, Collection<File> inputs, long since) {
+		boolean changed = false;
+		synchronized (this) {
+			unregister(key);
+			for (File input : inputs) {
+				Path file = input.toPath().toAbsolutePath().normalize();
+				Path dir = file.getParent();
+				if (dir == null || !isWatched(dir)) {
+					continue;
+				}
+				if (!dirKeys.containsKey(dir)) {
+					try {
+						dirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+					}
+					catch (IOException e) {
+						ZimbraLog.webclient.warn("Unable to watch skin directory " + dir, e);
+						continue;
+					}
+					catch (ClosedWatchServiceException e) {
+						return;
+					}
+					dirKeys.put(dir, new HashSet<String>());
+				}
+				dirKeys.get(dir).add(key);
+				Set<String> keys = fileKeys.get(file);
+				if (keys == null) {
+					keys = new HashSet<String>();
+					fileKeys.put(file, keys);
+				}
+				keys.add(key);
+				Set<Path> files = keyFiles.get(key);
+				if (files == null) {
+					files = new HashSet<Path>();
+					keyFiles.put(key, files);
+				}
+				files.add(file);
+				// NOTE: The change may have happened before the directory
+				// NOTE: was watched.
+				changed |= input.lastModified() > since;
+			}
+		}
+		if (changed) {
+			Set<String> keys = new HashSet<String>();
+			keys.add(key);
+			notify(keys);
+		}
+	}
+
+	/**
+	 * Forgets the bundle with the given key, e.g. because it was evicted.
+	 * The directories stay watched. Only the key's own files are looked
+	 * at, so this is cheap even with many bundles registered.
+	 */
+	public synchronized void unregister(String key) {
+		Set<Path> files = keyFiles.remove(key);
+		if (files == null) {
+			return;
+		}
+		for (Path file : files) {
+			Set<String> keys = fileKeys.get(file);
+			if (keys != null && keys.remove(key) && keys.isEmpty()) {
+				fileKeys.remove(file);
+			}
+			Set<String> dkeys = dirKeys.get(file.getParent());
+			if (dkeys != null) {
+				dkeys.remove(key);
+			}
+		}
+	}
+
+	/** Forgets all registered bundles. The directories stay watched. */
+	public synchronized void clear() {
+		keyFiles.clear();
+		fileKeys.clear();
+		for (Set<String> keys : dirKeys.values()) {
+			keys.clear();
+		}
+	}
+
+	/** Returns the number of watched files. */
+	public synchronized int size() {
+		return fileKeys.size();
+	}
+
+	public void shutdown() {
+		try {
+			watchService.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+		thread.interrupt();
+	}
+
+	//
+	// Private methods
+	//
+
+	private boolean isWatched(Path dir) {
+		for (Path root : roots) {
+			if (dir.startsWith(root)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void watch() {
+		while (true) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (ClosedWatchServiceException e) {
+				return;
+			}
+			Set<String> keys = new HashSet<String>();
+			synchronized (this) {
+				Path dir = dirs.get(watchKey);
+				for (WatchEvent<?> event : watchKey.pollEvents()) {
+					if (dir == null) {
+						continue;
+					}
+					WatchEvent.Kind<?> kind = event.kind();
+					if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+						Set<String> fkeys = fileKeys.get(dir.resolve((Path)event.context()));
+						if (fkeys != null) {
+							keys.addAll(fkeys);
+						}
+					}
+					else {
+						// NOTE: Created, deleted or lost (overflow) events.
+						Set<String> dkeys = dirKeys.get(dir);
+						if (dkeys != null) {
+							keys.addAll(dkeys);
+						}
+					}
+				}
+				// NOTE: The affected bundles are generated again and then
+				// NOTE: registered with their new inputs.
+				for (String key : keys) {
+					unregister(key);
+				}
+				if (!watchKey.reset()) {
+					dirs.remove(watchKey);
+					dirKeys.remove(dir);
+				}
+			}
+			if (!keys.isEmpty()) {
+				notify(keys);
+			}
+		}
+	}
+
+	private void notify(Set<String> keys) {
+		if (ZimbraLog.webclient.isDebugEnabled()) ZimbraLog.webclient.debug("DEBUG: skin files changed: " + keys);
+		try {
+			listener.changed(keys);
+		}
+		catch (RuntimeException e) {
+			ZimbraLog.webclient.warn("Unable to evict changed skin bundles", e);
+		}
+	}
+
+	//
+	// Classes
+	//
+
+	interface Listener {
+		/** Called with the keys of the bundles whose input files changed. */
+		public void changed(Set<String> keys);
+	}
+
+} // class SkinWatcher
@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.kabuki.servlets;
+
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bound, the eviction order and the flushes of
+ * {@link Props2JsCache}.
+ */
+public final class Props2JsCacheTest {
+
+    @Test
+    public void getAndPut() {
+        Props2JsCache cache = new Props2JsCache(1000);
+        Props2JsCache.Buffer buffer = newBuffer(100);
+        Assert.assertNull(cache.get(Locale.US, "/messages/ZMsg.js"));
+        cache.put(Locale.US, "/messages/ZMsg.js", buffer);
+        Assert.assertSame(buffer, cache.get(Locale.US, "/messages/ZMsg.js"));
+        Assert.assertNull(cache.get(Locale.FRANCE, "/messages/ZMsg.js"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.getStats().contains(" size=100 "));
+    }
+
+    @Test
+    public void leastRecentlyUsed() throws InterruptedException {
+        Props2JsCache cache = new Props2JsCache(300);
+        // NOTE: The order is by the time of the last hit (or put).
+        cache.put(Locale.US, "/messages/A.js", newBuffer(100));
+        Thread.sleep(1);
+        cache.put(Locale.US, "/messages/B.js", newBuffer(100));
+        Thread.sleep(1);
+        cache.put(Locale.FRANCE, "/messages/C.js", newBuffer(100));
+        Thread.sleep(1);
+        Assert.assertNotNull(cache.get(Locale.US, "/messages/A.js"));
+        cache.put(Locale.GERMANY, "/messages/D.js", newBuffer(100));
+        Assert.assertNotNull(cache.peek(Locale.US, "/messages/A.js"));
+        Assert.assertNull(cache.peek(Locale.US, "/messages/B.js"));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertTrue(cache.getStats().contains(" size=300 "));
+    }
+
+    @Test
+    public void tooLarge() {
+        Props2JsCache cache = new Props2JsCache(100);
+        cache.put(Locale.US, "/messages/A.js", newBuffer(101));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void gzippedSize() {
+        Props2JsCache cache = new Props2JsCache(100000);
+        Props2JsCache.Buffer buffer = newBuffer(5000);
+        cache.put(Locale.US, "/messages/A.js", buffer);
+        int gzipped = buffer.getGzipped().length;
+        Assert.assertTrue(cache.getStats().contains(" size=" + (5000 + gzipped) + " "));
+        cache.flush(null, null);
+        Assert.assertTrue(cache.getStats().contains(" size=0 "));
+    }
+
+    @Test
+    public void flush() {
+        Props2JsCache cache = new Props2JsCache(1000);
+        cache.put(Locale.US, "/messages/AjxMsg,ZMsg.js", newBuffer(10));
+        cache.put(Locale.US, "/keys/ZmKeys.js", newBuffer(10));
+        cache.put(Locale.FRANCE, "/messages/ZMsg.js", newBuffer(10));
+        cache.put(Locale.FRANCE, "/keys/ZmKeys.js", newBuffer(10));
+        Assert.assertEquals(2, cache.flush(null, "ZMsg"));
+        Assert.assertNotNull(cache.peek(Locale.US, "/keys/ZmKeys.js"));
+        Assert.assertEquals(1, cache.flush(Locale.FRANCE, null));
+        Assert.assertNotNull(cache.peek(Locale.US, "/keys/ZmKeys.js"));
+        Assert.assertEquals(1, cache.flush(null, null));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private static Props2JsCache.Buffer newBuffer(int length) {
+        return new Props2JsCache.Buffer(new byte[length], 0);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the size-weighted LRU eviction of {@link SkinBundleCache}.
+ */
+public final class SkinBundleCacheTest {
+
+	@Test
+	public void weight() {
+		SkinBundleCache cache = new SkinBundleCache(1000);
+		cache.put("a", newBundle(100));
+		cache.put("b", newBundle(200));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(300, cache.getWeight());
+		cache.put("a", newBundle(50));
+		Assert.assertEquals(250, cache.getWeight());
+		cache.remove("b");
+		Assert.assertEquals(50, cache.getWeight());
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void leastRecentlyUsed() {
+		final List<String> evicted = new ArrayList<String>();
+		SkinBundleCache cache = new SkinBundleCache(1000) {
+			@Override
+			protected void evicted(String cacheId) {
+				evicted.add(cacheId);
+			}
+		};
+		cache.put("a", newBundle(250));
+		cache.put("b", newBundle(250));
+		cache.put("c", newBundle(250));
+		cache.put("d", newBundle(250));
+		Assert.assertNotNull(cache.get("a"));
+		cache.put("e", newBundle(250));
+		Assert.assertNotNull(cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("[b]", evicted.toString());
+		Assert.assertEquals(1000, cache.getWeight());
+	}
+
+	@Test
+	public void tooLarge() {
+		SkinBundleCache cache = new SkinBundleCache(1000);
+		cache.put("a", newBundle(100));
+		Assert.assertFalse(cache.accepts(251));
+		cache.put("b", newBundle(251));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertNotNull(cache.get("a"));
+		Assert.assertEquals(100, cache.getWeight());
+	}
+
+	@Test
+	public void disabled() {
+		SkinBundleCache cache = new SkinBundleCache(0);
+		Assert.assertFalse(cache.isEnabled());
+		cache.put("a", newBundle(1));
+		Assert.assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void mapped() throws IOException {
+		File file = File.createTempFile("skinbundle", ".css");
+		try {
+			Files.write(file.toPath(), new byte[1 << 20]);
+			SkinBundle bundle = SkinBundle.map("css", file);
+			Assert.assertEquals(SkinBundle.MAPPED_WEIGHT, bundle.getWeight());
+			SkinBundleCache cache = new SkinBundleCache(4 * SkinBundle.MAPPED_WEIGHT);
+			Assert.assertTrue(cache.accepts(bundle.getWeight()));
+			cache.put("a", bundle);
+			Assert.assertSame(bundle, cache.get("a"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static SkinBundle newBundle(int length) {
+		return new SkinBundle("css", new byte[length], 0);
+	}
+
+} // class SkinBundleCacheTest
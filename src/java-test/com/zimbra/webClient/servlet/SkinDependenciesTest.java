@@ -0,0 +1,119 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SkinDependencies#isStale}, which decides whether a cached
+ * skin bundle (and a revalidation of it) is still current.
+ */
+public final class SkinDependenciesTest {
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("skindeps").toFile();
+		file = new File(dir, "skin.css");
+		write(file, "body { color: red; }");
+	}
+
+	@After
+	public void tearDown() {
+		for (File child : dir.listFiles()) {
+			child.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void unchanged() throws IOException {
+		Assert.assertFalse(newDependencies(file).isStale());
+	}
+
+	@Test
+	public void touched() throws IOException {
+		SkinDependencies deps = newDependencies(file);
+		file.setLastModified(file.lastModified() + 10000);
+		Assert.assertFalse(deps.isStale());
+		// The new modification time is remembered.
+		write(file, "body { color: blue; }");
+		file.setLastModified(file.lastModified() + 10000);
+		Assert.assertTrue(deps.isStale());
+	}
+
+	@Test
+	public void modifiedSameLength() throws IOException {
+		SkinDependencies deps = newDependencies(file);
+		write(file, "body { color: blue }");
+		file.setLastModified(file.lastModified() + 10000);
+		Assert.assertTrue(deps.isStale());
+	}
+
+	@Test
+	public void modifiedLength() throws IOException {
+		SkinDependencies deps = newDependencies(file);
+		write(file, "body { color: green; }");
+		Assert.assertTrue(deps.isStale());
+	}
+
+	@Test
+	public void deleted() throws IOException {
+		SkinDependencies deps = newDependencies(file);
+		file.delete();
+		Assert.assertTrue(deps.isStale());
+	}
+
+	@Test
+	public void created() throws IOException {
+		File variant = new File(dir, "skin_fr.css");
+		SkinDependencies deps = newDependencies(file, variant);
+		write(variant, "body { color: bleu; }");
+		Assert.assertTrue(deps.isStale());
+	}
+
+	@Test
+	public void directoryListing() throws IOException {
+		SkinDependencies deps = newDependencies(dir);
+		Assert.assertFalse(deps.isStale());
+		write(new File(dir, "skin_de.css"), "body { color: rot; }");
+		dir.setLastModified(dir.lastModified() + 10000);
+		Assert.assertTrue(deps.isStale());
+	}
+
+	private static SkinDependencies newDependencies(File... files) throws IOException {
+		return new SkinDependencies(Arrays.asList(files), Collections.<String,String>emptyMap(),
+			Collections.<String,String>emptyMap());
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes("UTF-8"));
+	}
+
+} // class SkinDependenciesTest
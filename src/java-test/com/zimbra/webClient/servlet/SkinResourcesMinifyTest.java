@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Web Client
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.webClient.servlet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that minifying the files of a bundle one by one gives the same
+ * result as minifying the whole bundle, also in the cases where the
+ * files can't be minified separately.
+ */
+public final class SkinResourcesMinifyTest {
+
+	private SkinResources resources;
+
+	@Before
+	public void setUp() {
+		resources = new SkinResources();
+		resources.setCheckMinify(true);
+	}
+
+	@Test
+	public void javascript() throws IOException {
+		assertEquivalent("javascript",
+			"var a = 1;\n",
+			"function f(x) {\n\treturn x + 1; // next\n}\n",
+			"var b = f(a)\n",
+			"var c = [b];\n");
+	}
+
+	@Test
+	public void javascriptContinuation() throws IOException {
+		assertEquivalent("javascript",
+			"var b = window.f\n",
+			"(function() { b++; })();\n");
+	}
+
+	@Test
+	public void javascriptSplitStatement() throws IOException {
+		assertEquivalent("javascript",
+			"var o = {\n",
+			"\ta: 1\n};\n");
+	}
+
+	@Test
+	public void javascriptEmptyFile() throws IOException {
+		assertEquivalent("javascript",
+			"var a = 1;\n",
+			"// nothing but a comment\n",
+			"var b = 2;\n");
+	}
+
+	@Test
+	public void css() throws IOException {
+		assertEquivalent("css",
+			"body { color: red; }\n",
+			"/* comment */\na { margin: 0px; }\n",
+			"div.x{padding:0 0 0 0}\n");
+	}
+
+	@Test
+	public void cssOpenComment() throws IOException {
+		assertEquivalent("css",
+			"body { color: red; }\n/* starts here\n",
+			"and ends here */ a { margin: 0; }\n");
+	}
+
+	private void assertEquivalent(String type, String... files) throws IOException {
+		List<String> fragments = Arrays.asList(files);
+		StringBuilder buffer = new StringBuilder();
+		for (String fragment : fragments) {
+			buffer.append(fragment);
+		}
+		resources.minify(type, buffer.toString(), fragments);
+		Assert.assertEquals("mismatches", 0, resources.getMinifyMismatches());
+	}
+
+} // class SkinResourcesMinifyTest